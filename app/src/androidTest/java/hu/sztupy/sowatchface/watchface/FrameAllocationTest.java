@@ -0,0 +1,228 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Draws frames through the engine's draw path and fails if any of them allocates on the drawing
+ * thread. Garbage created while drawing once a second eventually shows up as GC pauses
+ * stuttering the second hand.
+ * <p>
+ * The engine is driven on the main thread the way the system drives it: created, sized, and
+ * then asked to draw, here into an offscreen canvas. Both the frames only copying the static
+ * layer and the frames recomposing it (background, notification indicator, complications and
+ * UTC notch) are checked.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation") // Debug's allocation counters are the only per-thread ones.
+public class FrameAllocationTest {
+    private static final int SCREEN_SIZE = 320;
+
+    /* Frames drawn before counting, while lazily initialized framework state settles. */
+    private static final int WARM_UP_FRAMES = 10;
+    private static final int MEASURED_FRAMES = 200;
+
+    private static final long ASSETS_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private Instrumentation mInstrumentation;
+    private SOWatchFace.Engine mEngine;
+    private Bitmap mTarget;
+    private Canvas mCanvas;
+    private Rect mBounds;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        final TestWatchFace watchFace = new TestWatchFace(mInstrumentation.getTargetContext());
+        final SurfaceHolder holder = new OffscreenSurfaceHolder(SCREEN_SIZE, SCREEN_SIZE);
+
+        mTarget = Bitmap.createBitmap(SCREEN_SIZE, SCREEN_SIZE, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mTarget);
+        mBounds = new Rect(0, 0, SCREEN_SIZE, SCREEN_SIZE);
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mEngine = watchFace.onCreateEngine();
+                mEngine.onCreate(holder);
+                mEngine.onSurfaceChanged(holder, PixelFormat.RGBA_8888, SCREEN_SIZE, SCREEN_SIZE);
+            }
+        });
+
+        // The assets are built in the background and handed over on the main thread.
+        long deadline = SystemClock.elapsedRealtime() + ASSETS_TIMEOUT_MS;
+        while (!hasAssets()) {
+            assertTrue("The watch face assets weren't built in time",
+                    SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.onDestroy();
+            }
+        });
+        mTarget.recycle();
+    }
+
+    @Test
+    public void framesCopyingTheStaticLayerDoNotAllocate() {
+        assertEquals("Objects allocated in " + MEASURED_FRAMES + " frames",
+                0, countAllocations(false));
+    }
+
+    @Test
+    public void framesRecomposingTheStaticLayerDoNotAllocate() {
+        assertEquals("Objects allocated in " + MEASURED_FRAMES + " frames",
+                0, countAllocations(true));
+    }
+
+    private boolean hasAssets() {
+        final boolean[] result = new boolean[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = mEngine.getAssets() != null;
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * Draws the frames on the main thread and returns the number of objects they allocated.
+     *
+     * @param recompose whether to invalidate the static layer before each frame
+     */
+    private int countAllocations(final boolean recompose) {
+        final int[] allocations = new int[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // Unchanged properties keep the assets, but mark the static layer stale.
+                Bundle properties = new Bundle();
+
+                Debug.startAllocCounting();
+                try {
+                    for (int frame = -WARM_UP_FRAMES; frame < MEASURED_FRAMES; frame++) {
+                        if (recompose) {
+                            mEngine.onPropertiesChanged(properties);
+                        }
+
+                        int before = Debug.getThreadAllocCount();
+                        mEngine.onDraw(mCanvas, mBounds);
+                        if (frame >= 0) {
+                            allocations[0] += Debug.getThreadAllocCount() - before;
+                        }
+                    }
+                } finally {
+                    Debug.stopAllocCounting();
+                }
+            }
+        });
+        return allocations[0];
+    }
+
+    /**
+     * The watch face service attached to the app's context directly, without being bound by the
+     * system.
+     */
+    private static class TestWatchFace extends SOWatchFace {
+        TestWatchFace(Context context) {
+            attachBaseContext(context);
+        }
+    }
+
+    /**
+     * A surface holder without a surface. The engine only draws into the canvas it is given, so
+     * nothing is ever locked.
+     */
+    private static class OffscreenSurfaceHolder implements SurfaceHolder {
+        private final Rect mFrame;
+
+        OffscreenSurfaceHolder(int width, int height) {
+            mFrame = new Rect(0, 0, width, height);
+        }
+
+        @Override
+        public void addCallback(Callback callback) {
+        }
+
+        @Override
+        public void removeCallback(Callback callback) {
+        }
+
+        @Override
+        public boolean isCreating() {
+            return false;
+        }
+
+        @Override
+        public void setType(int type) {
+        }
+
+        @Override
+        public void setFixedSize(int width, int height) {
+        }
+
+        @Override
+        public void setSizeFromLayout() {
+        }
+
+        @Override
+        public void setFormat(int format) {
+        }
+
+        @Override
+        public void setKeepScreenOn(boolean screenOn) {
+        }
+
+        @Override
+        public Canvas lockCanvas() {
+            return null;
+        }
+
+        @Override
+        public Canvas lockCanvas(Rect dirty) {
+            return null;
+        }
+
+        @Override
+        public void unlockCanvasAndPost(Canvas canvas) {
+        }
+
+        @Override
+        public Rect getSurfaceFrame() {
+            return mFrame;
+        }
+
+        @Override
+        public Surface getSurface() {
+            return null;
+        }
+    }
+}
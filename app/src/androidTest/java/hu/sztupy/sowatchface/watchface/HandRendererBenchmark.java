@@ -0,0 +1,178 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewAdapter;
+import hu.sztupy.sowatchface.utils.LogoDownloadService;
+import hu.sztupy.sowatchface.utils.SiteListService;
+
+/**
+ * Compares the bitmap and vector hands on the device, so the faster mode can be picked per
+ * device class. For each supported screen size the renderers the engine draws through draw the
+ * same sequence of frames into an offscreen bitmap, in interactive and in ambient mode, and the
+ * time per frame and the memory used are logged. The bitmap hands draw from a set built the way
+ * the engine builds it, with and without the sprite atlases. Run it with
+ * adb shell am instrument -w -e class hu.sztupy.sowatchface.watchface.HandRendererBenchmark
+ * hu.sztupy.sowatchface.test/android.support.test.runner.AndroidJUnitRunner
+ * and read the results with adb logcat -s HandRendererBenchmark.
+ * <p>
+ * The benchmark uses its own builder and bitmap pool, so it can't disturb a running watch face.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HandRendererBenchmark {
+    private static final String TAG = "HandRendererBenchmark";
+
+    /* The round screen sizes the pre-scaled images are generated for, see build.gradle. */
+    private static final int[] SCREEN_SIZES = {320, 360, 390, 400, 454};
+
+    private static final int WARM_UP_FRAMES = 20;
+    private static final int MEASURED_FRAMES = 200;
+
+    private static final long BITMAP_POOL_MAX_BYTES = 4 * 1024 * 1024;
+
+    private BitmapPool mBitmapPool;
+    private FaceAssetBuilder mBuilder;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        LogoDownloadService logoService = new LogoDownloadService(context);
+
+        mBitmapPool = new BitmapPool(BITMAP_POOL_MAX_BYTES);
+        mBuilder = new FaceAssetBuilder(context.getResources(), logoService,
+                new SiteListService(context),
+                new FaceAssetDiskCache(new File(context.getCacheDir(), TAG), logoService,
+                        mBitmapPool),
+                mBitmapPool);
+    }
+
+    @After
+    public void tearDown() {
+        mBuilder.release();
+        mBitmapPool.clear();
+    }
+
+    @Test
+    public void compareHandRenderers() {
+        Log.i(TAG, "Hand renderer benchmark, " + MEASURED_FRAMES + " frames each:");
+
+        for (int size : SCREEN_SIZES) {
+            Bitmap target = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(target);
+
+            // The sets the engine draws from, once without and once with the sprite atlases.
+            for (boolean spriteAtlases : new boolean[] {false, true}) {
+                HeapUsage before = HeapUsage.now();
+                FaceAssets assets = mBuilder.build(new FaceAssetBuilder.Spec(
+                        false, spriteAtlases, false, false, GrayscaleStrategy.PRECOMPUTED,
+                        AnalogComplicationConfigRecyclerViewAdapter.STACKOVERFLOW_NAME,
+                        size, size));
+                HeapUsage delta = HeapUsage.now().minus(before);
+
+                BitmapHandRenderer bitmapRenderer = new BitmapHandRenderer(size / 2f, size / 2f);
+                bitmapRenderer.setAssets(assets);
+                String mode = spriteAtlases ? "bitmap+atlas" : "bitmap";
+                measure(size, mode, bitmapRenderer, false, canvas, delta);
+                measure(size, mode, bitmapRenderer, true, canvas, delta);
+                assets.releaseTo(mBitmapPool);
+            }
+
+            HeapUsage before = HeapUsage.now();
+            VectorHandRenderer vectorRenderer = new VectorHandRenderer(size, size);
+            HeapUsage delta = HeapUsage.now().minus(before);
+            measure(size, "vector", vectorRenderer, false, canvas, delta);
+            measure(size, "vector", vectorRenderer, true, canvas, delta);
+
+            target.recycle();
+        }
+    }
+
+    /**
+     * Draws the frames the engine would draw in the given mode, with the same angles: a ticking
+     * second hand in interactive mode, whole minutes in ambient mode.
+     *
+     * @param setupDelta the memory taken by creating the renderer, including the set it draws
+     */
+    private static void measure(int size, String mode, HandRenderer renderer, boolean ambient,
+                                Canvas canvas, HeapUsage setupDelta) {
+        renderer.setStyle(ambient, false, false, true, true);
+        long[] frameNanos = new long[MEASURED_FRAMES];
+
+        for (int frame = -WARM_UP_FRAMES; frame < MEASURED_FRAMES; frame++) {
+            // A second per frame in interactive mode, a minute per frame in ambient mode.
+            int step = frame + WARM_UP_FRAMES;
+            int seconds = ambient ? 0 : step % 60;
+            int minutes = (ambient ? step : step / 60) % 60;
+            int hours = ((ambient ? step / 60 : 0) + 10) % 12;
+
+            long startNanos = System.nanoTime();
+            canvas.drawColor(Color.BLACK);
+            renderer.drawUtcNotch(canvas, 30f);
+            renderer.drawHourHand(canvas, hours * 30 + minutes / 2f);
+            renderer.drawMinuteHand(canvas, minutes * 6f + (ambient ? 0f : seconds / 10f));
+            if (!ambient) {
+                renderer.drawSecondHand(canvas, seconds * 6f);
+            }
+            long durationNanos = System.nanoTime() - startNanos;
+            if (frame >= 0) {
+                frameNanos[frame] = durationNanos;
+            }
+        }
+
+        Arrays.sort(frameNanos);
+        long totalNanos = 0;
+        for (long nanos : frameNanos) {
+            totalNanos += nanos;
+        }
+
+        Log.i(TAG, "  " + size + "px " + mode + (ambient ? " ambient" : " interactive")
+                + ": mean=" + TimeUnit.NANOSECONDS.toMicros(totalNanos / MEASURED_FRAMES)
+                + "us p50=" + TimeUnit.NANOSECONDS.toMicros(frameNanos[MEASURED_FRAMES / 2])
+                + "us p95=" + TimeUnit.NANOSECONDS.toMicros(frameNanos[MEASURED_FRAMES * 95 / 100])
+                + "us handBitmaps=" + renderer.getByteCount() / 1024
+                + "KB setupJavaHeap=" + setupDelta.javaBytes / 1024
+                + "KB setupNativeHeap=" + setupDelta.nativeBytes / 1024 + "KB");
+    }
+
+    /**
+     * Memory in use on both heaps. Before Android O bitmap pixels live on the Java heap, from O
+     * on on the native one, so a renderer's cost only shows up in both together.
+     */
+    private static final class HeapUsage {
+        final long javaBytes;
+        final long nativeBytes;
+
+        private HeapUsage(long javaBytes, long nativeBytes) {
+            this.javaBytes = javaBytes;
+            this.nativeBytes = nativeBytes;
+        }
+
+        static HeapUsage now() {
+            // Garbage left by the previous renderer would otherwise be counted against this one.
+            Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            return new HeapUsage(runtime.totalMemory() - runtime.freeMemory(),
+                    Debug.getNativeHeapAllocatedSize());
+        }
+
+        HeapUsage minus(HeapUsage other) {
+            return new HeapUsage(javaBytes - other.javaBytes, nativeBytes - other.nativeBytes);
+        }
+    }
+}
@@ -31,6 +31,8 @@ import hu.sztupy.sowatchface.model.AnalogComplicationConfigData.PreviewAndCompli
 import hu.sztupy.sowatchface.model.AnalogComplicationConfigData.SwitchConfigItem;
 import hu.sztupy.sowatchface.model.AnalogComplicationConfigData.InputConfigItem;
 import hu.sztupy.sowatchface.model.AnalogComplicationConfigData.ValueDisplayConfigItem;
+import hu.sztupy.sowatchface.model.AnalogComplicationConfigData.ChoiceConfigItem;
+import hu.sztupy.sowatchface.utils.AssociatedAccountCache;
 import hu.sztupy.sowatchface.watchface.SOWatchFace;
 
 import java.util.ArrayList;
@@ -83,6 +85,7 @@ public class AnalogComplicationConfigRecyclerViewAdapter
     public static final int TYPE_SWITCH_CONFIG = 1;
     public static final int TYPE_INPUT_CONFIG = 2;
     public static final int TYPE_VALUE_CONFIG = 3;
+    public static final int TYPE_CHOICE_CONFIG = 4;
 
     // ComponentName associated with watch face service (service that renders watch face). Used
     // to retrieve complication information.
@@ -186,6 +189,15 @@ public class AnalogComplicationConfigRecyclerViewAdapter
                                                 parent,
                                                 false));
                 break;
+            case TYPE_CHOICE_CONFIG:
+                viewHolder =
+                        new ChoiceViewHolder(
+                                LayoutInflater.from(parent.getContext())
+                                        .inflate(
+                                                R.layout.config_value_display,
+                                                parent,
+                                                false));
+                break;
         }
 
         return viewHolder;
@@ -230,6 +242,7 @@ public class AnalogComplicationConfigRecyclerViewAdapter
                 unreadViewHolder.setIcons(
                         unreadEnabledIconResourceId, unreadDisabledIconResourceId);
                 unreadViewHolder.setName(unreadName);
+                unreadViewHolder.setDefaultValue(unreadConfigItem.getDefaultValue());
                 unreadViewHolder.setSharedPrefId(unreadSharedPrefId);
                 break;
 
@@ -267,6 +280,19 @@ public class AnalogComplicationConfigRecyclerViewAdapter
 
                 mValueDisplayViewHolders.add(valueDisplayViewHolder);
                 break;
+            case TYPE_CHOICE_CONFIG:
+                ChoiceViewHolder choiceViewHolder =
+                        (ChoiceViewHolder) viewHolder;
+
+                ChoiceConfigItem choiceConfigItem =
+                        (ChoiceConfigItem) configItemType;
+
+                choiceViewHolder.setName(choiceConfigItem.getName());
+                choiceViewHolder.setIcon(choiceConfigItem.getIconResourceId());
+                choiceViewHolder.setValues(
+                        choiceConfigItem.getValues(), choiceConfigItem.getDefaultValue());
+                choiceViewHolder.setSharedPrefId(choiceConfigItem.getSharedPrefId());
+                break;
         }
     }
 
@@ -464,6 +490,7 @@ public class AnalogComplicationConfigRecyclerViewAdapter
         private int mDisabledIconResourceId;
 
         private int mSharedPrefResourceId;
+        private boolean mDefaultValue = true;
 
         public SwitchViewHolder(View view) {
             super(view);
@@ -488,6 +515,11 @@ public class AnalogComplicationConfigRecyclerViewAdapter
                     context.getDrawable(mEnabledIconResourceId), null, null, null);
         }
 
+        // Value shown while the preference hasn't been saved yet. Set before the preference id.
+        public void setDefaultValue(boolean defaultValue) {
+            mDefaultValue = defaultValue;
+        }
+
         public void setSharedPrefId(int sharedPrefId) {
             mSharedPrefResourceId = sharedPrefId;
 
@@ -495,7 +527,7 @@ public class AnalogComplicationConfigRecyclerViewAdapter
 
                 Context context = mSwitch.getContext();
                 String sharedPreferenceString = context.getString(mSharedPrefResourceId);
-                Boolean currentState = mSharedPref.getBoolean(sharedPreferenceString, true);
+                Boolean currentState = mSharedPref.getBoolean(sharedPreferenceString, mDefaultValue);
 
                 updateIcon(context, currentState);
             }
@@ -524,7 +556,7 @@ public class AnalogComplicationConfigRecyclerViewAdapter
             String sharedPreferenceString = context.getString(mSharedPrefResourceId);
 
             // Since user clicked on a switch, new state should be opposite of current state.
-            Boolean newState = !mSharedPref.getBoolean(sharedPreferenceString, true);
+            Boolean newState = !mSharedPref.getBoolean(sharedPreferenceString, mDefaultValue);
 
             SharedPreferences.Editor editor = mSharedPref.edit();
             editor.putBoolean(sharedPreferenceString, newState);
@@ -608,6 +640,12 @@ public class AnalogComplicationConfigRecyclerViewAdapter
                     newValue = JON_SKEET_SE_ID;
                 }
 
+                int oldValue = mSharedPref.getInt(sharedPreferenceString, JON_SKEET_SE_ID);
+                if (newValue != oldValue
+                        && mSharedPrefResourceId == R.string.saved_se_user_id_pref) {
+                    new AssociatedAccountCache(context).invalidate(oldValue);
+                }
+
                 SharedPreferences.Editor editor = mSharedPref.edit();
                 editor.putInt(sharedPreferenceString, newValue);
                 editor.apply();
@@ -707,4 +745,76 @@ public class AnalogComplicationConfigRecyclerViewAdapter
         }
     }
 
+    /**
+     * Displays the current value of an integer preference, stepping to the next of its allowed
+     * values every time the user taps it.
+     */
+    public class ChoiceViewHolder extends RecyclerView.ViewHolder implements OnClickListener {
+
+        private TextView mValue;
+        private TextView mLabel;
+        private View mView;
+
+        private int mSharedPrefResourceId;
+
+        private int[] mValues;
+        private int mDefaultValue;
+
+        public ChoiceViewHolder(View view) {
+            super(view);
+            mView = view;
+
+            mValue = (TextView) mView.findViewById(R.id.select_item_value);
+            mLabel = (TextView) mView.findViewById(R.id.select_item_text);
+
+            mView.setOnClickListener(this);
+            mValue.setOnClickListener(this);
+            mLabel.setOnClickListener(this);
+        }
+
+        public void setName(String name) {
+            mLabel.setText(name);
+        }
+
+        public void setIcon(int iconResourceId) {
+            Context context = mLabel.getContext();
+
+            mLabel.setCompoundDrawablesWithIntrinsicBounds(
+                    context.getDrawable(iconResourceId), null, null, null);
+        }
+
+        // Set before the preference id.
+        public void setValues(int[] values, int defaultValue) {
+            mValues = values;
+            mDefaultValue = defaultValue;
+        }
+
+        public void setSharedPrefId(int sharedPrefId) {
+            mSharedPrefResourceId = sharedPrefId;
+
+            String sharedPreferenceString = mValue.getContext().getString(mSharedPrefResourceId);
+            mValue.setText(String.valueOf(mSharedPref.getInt(sharedPreferenceString, mDefaultValue)));
+        }
+
+        @Override
+        public void onClick(View v) {
+            String sharedPreferenceString = mView.getContext().getString(mSharedPrefResourceId);
+            int currentValue = mSharedPref.getInt(sharedPreferenceString, mDefaultValue);
+
+            // Values not in the list, like ones saved by older versions, step to the first one.
+            int newValue = mValues[0];
+            for (int i = 0; i < mValues.length - 1; i++) {
+                if (mValues[i] == currentValue) {
+                    newValue = mValues[i + 1];
+                    break;
+                }
+            }
+
+            SharedPreferences.Editor editor = mSharedPref.edit();
+            editor.putInt(sharedPreferenceString, newValue);
+            editor.apply();
+
+            mValue.setText(String.valueOf(newValue));
+        }
+    }
 }
@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import hu.sztupy.sowatchface.R;
+import hu.sztupy.sowatchface.utils.AssociatedAccountCache;
 import hu.sztupy.sowatchface.utils.SiteListService;
 
 public class SiteSelectorRecyclerViewAdapter extends
@@ -84,6 +85,14 @@ public class SiteSelectorRecyclerViewAdapter extends
                         activity.getString(R.string.analog_complication_preference_file_key),
                         Context.MODE_PRIVATE);
 
+                if (mSharedPrefString.equals(activity.getString(R.string.saved_site_name_pref))) {
+                    int seUserId = sharedPref.getInt(
+                            activity.getString(R.string.saved_se_user_id_pref),
+                            AnalogComplicationConfigRecyclerViewAdapter.JON_SKEET_SE_ID);
+                    new AssociatedAccountCache(activity)
+                            .invalidateIfMissing(seUserId, site.getUrl());
+                }
+
                 SharedPreferences.Editor editor = sharedPref.edit();
                 editor.putString(mSharedPrefString, site.getCode());
                 editor.apply();
@@ -73,6 +73,44 @@ public class AnalogComplicationConfigData {
                         R.string.saved_design_pref);
         settingsConfigData.add(designPreferenceConfigItem);
 
+        // The atlases take up to a few MB of bitmaps, so they are opt-in.
+        ConfigItemType spriteAtlasConfigItem =
+                new SwitchConfigItem(
+                        context.getString(R.string.config_sprite_atlas_label),
+                        R.drawable.baseline_stars_white_24,
+                        R.drawable.baseline_star_rate_white_24,
+                        R.string.saved_sprite_atlas_pref,
+                        false);
+        settingsConfigData.add(spriteAtlasConfigItem);
+
+        // Sweeping costs a lot more battery than ticking, so it is opt-in.
+        ConfigItemType sweepConfigItem =
+                new SwitchConfigItem(
+                        context.getString(R.string.config_sweep_label),
+                        R.drawable.baseline_alarm_white_24,
+                        R.drawable.baseline_alarm_off_white_24,
+                        R.string.saved_sweep_pref,
+                        false);
+        settingsConfigData.add(sweepConfigItem);
+
+        ConfigItemType sweepFpsConfigItem =
+                new ChoiceConfigItem(
+                        context.getString(R.string.config_sweep_fps_label),
+                        R.drawable.baseline_alarm_white_24,
+                        R.string.saved_sweep_fps_pref,
+                        SOWatchFace.SWEEP_FPS_CHOICES,
+                        SOWatchFace.SWEEP_DEFAULT_FPS);
+        settingsConfigData.add(sweepFpsConfigItem);
+
+        ConfigItemType vectorHandsConfigItem =
+                new SwitchConfigItem(
+                        context.getString(R.string.config_vector_hands_label),
+                        R.drawable.baseline_stars_white_24,
+                        R.drawable.baseline_star_rate_white_24,
+                        R.string.saved_vector_hands_pref,
+                        false);
+        settingsConfigData.add(vectorHandsConfigItem);
+
         ConfigItemType siteNameConfigItem =
                 new ValueDisplayConfigItem(
                         context.getString(R.string.config_se_site_label),
@@ -129,16 +167,27 @@ public class AnalogComplicationConfigData {
         private int iconEnabledResourceId;
         private int iconDisabledResourceId;
         private int sharedPrefId;
+        private boolean defaultValue;
 
         SwitchConfigItem(
                 String name,
                 int iconEnabledResourceId,
                 int iconDisabledResourceId,
                 int sharedPrefId) {
+            this(name, iconEnabledResourceId, iconDisabledResourceId, sharedPrefId, true);
+        }
+
+        SwitchConfigItem(
+                String name,
+                int iconEnabledResourceId,
+                int iconDisabledResourceId,
+                int sharedPrefId,
+                boolean defaultValue) {
             this.name = name;
             this.iconEnabledResourceId = iconEnabledResourceId;
             this.iconDisabledResourceId = iconDisabledResourceId;
             this.sharedPrefId = sharedPrefId;
+            this.defaultValue = defaultValue;
         }
 
         public String getName() {
@@ -157,6 +206,10 @@ public class AnalogComplicationConfigData {
             return sharedPrefId;
         }
 
+        public boolean getDefaultValue() {
+            return defaultValue;
+        }
+
         @Override
         public int getConfigType() {
             return AnalogComplicationConfigRecyclerViewAdapter.TYPE_SWITCH_CONFIG;
@@ -196,6 +249,56 @@ public class AnalogComplicationConfigData {
         }
     }
 
+    /**
+     * Data for an integer preference picked from a few values, which are stepped through on tap.
+     */
+    public static class ChoiceConfigItem implements ConfigItemType {
+
+        private String name;
+        private int iconResourceId;
+        private int sharedPrefId;
+        private int[] values;
+        private int defaultValue;
+
+        ChoiceConfigItem(
+                String name,
+                int iconResourceId,
+                int sharedPrefId,
+                int[] values,
+                int defaultValue) {
+            this.name = name;
+            this.iconResourceId = iconResourceId;
+            this.sharedPrefId = sharedPrefId;
+            this.values = values;
+            this.defaultValue = defaultValue;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getIconResourceId() {
+            return iconResourceId;
+        }
+
+        public int getSharedPrefId() {
+            return sharedPrefId;
+        }
+
+        public int[] getValues() {
+            return values;
+        }
+
+        public int getDefaultValue() {
+            return defaultValue;
+        }
+
+        @Override
+        public int getConfigType() {
+            return AnalogComplicationConfigRecyclerViewAdapter.TYPE_CHOICE_CONFIG;
+        }
+    }
+
     public static class ValueDisplayConfigItem implements ConfigItemType {
 
         private String name;
@@ -5,7 +5,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Icon;
 import android.os.Environment;
 import android.support.wearable.complications.ComplicationData;
@@ -14,13 +13,6 @@ import android.support.wearable.complications.ComplicationProviderService;
 import android.support.wearable.complications.ComplicationText;
 import android.util.Log;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -34,7 +26,6 @@ import java.util.Locale;
 
 import hu.sztupy.sowatchface.R;
 import hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewAdapter;
-import hu.sztupy.sowatchface.utils.InputStreamVolleyRequest;
 import hu.sztupy.sowatchface.utils.LogoDownloadService;
 import hu.sztupy.sowatchface.utils.SiteListService;
 
@@ -74,9 +65,19 @@ public class StackOverflowLogoProviderService extends ComplicationProviderServic
                 Icon image = null;
 
                 if (logoService.logoExists(logoService.getCurrentSiteCodeName())) {
-                    Bitmap bmp = BitmapFactory.decodeFile(logoService.getIconFile(logoService.getCurrentSiteCodeName()).getAbsolutePath());
-                    image = Icon.createWithBitmap(bmp);
-                    icon = Icon.createWithBitmap(LogoDownloadService.resizeLogo(bmp, 64, 64));
+                    String site = logoService.getCurrentSiteCodeName();
+                    Bitmap bmp = logoService.getLogo(site, 64, 64);
+                    if (bmp != null) {
+                        icon = Icon.createWithBitmap(bmp);
+                    }
+                    // The full size logo is only decoded for the image types.
+                    if (dataType == ComplicationData.TYPE_SMALL_IMAGE
+                            || dataType == ComplicationData.TYPE_LARGE_IMAGE) {
+                        Bitmap full = logoService.getLogo(site, 0, 0);
+                        if (full != null) {
+                            image = Icon.createWithBitmap(full);
+                        }
+                    }
                 }
 
                 String shortName = siteListService.getShortName(logoService.getCurrentSiteCodeName());
@@ -5,31 +5,31 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Icon;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.wearable.complications.ComplicationData;
 import android.support.wearable.complications.ComplicationManager;
 import android.support.wearable.complications.ComplicationProviderService;
 import android.support.wearable.complications.ComplicationText;
 import android.util.Log;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import hu.sztupy.sowatchface.R;
 import hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewAdapter;
+import hu.sztupy.sowatchface.utils.AssociatedAccountCache;
 import hu.sztupy.sowatchface.utils.LogoDownloadService;
 import hu.sztupy.sowatchface.utils.SiteListService;
+import hu.sztupy.sowatchface.utils.StackExchangeClient;
+import hu.sztupy.sowatchface.utils.StackExchangeClients;
 
 /**
  * Example Watch Face Complication data provider provides a number that can be incremented on tap.
@@ -37,7 +37,6 @@ import hu.sztupy.sowatchface.utils.SiteListService;
 public class StackOverflowReputationProviderService extends ComplicationProviderService {
 
     private static final String TAG = "SORepProviderService";
-    public static final String SO_ACCESS_KEY = "DHARdYfewh89v8Af)V194A((";
     public static final String REPUTATION_KEY = "reputation";
 
     private static final int[] REPUTATION_MILESTONES = {
@@ -108,8 +107,10 @@ public class StackOverflowReputationProviderService extends ComplicationProvider
 
                 Icon icon = null;
                 if (logoService.logoExists(logoService.getCurrentSiteCodeName())){
-                    Bitmap bmp = BitmapFactory.decodeFile(logoService.getIconFile(logoService.getCurrentSiteCodeName()).getAbsolutePath());
-                    icon = Icon.createWithBitmap(LogoDownloadService.resizeLogo(bmp, 64, 64));
+                    Bitmap bmp = logoService.getLogo(logoService.getCurrentSiteCodeName(), 64, 64);
+                    if (bmp != null) {
+                        icon = Icon.createWithBitmap(bmp);
+                    }
                 }
 
                 switch (dataType) {
@@ -167,19 +168,92 @@ public class StackOverflowReputationProviderService extends ComplicationProvider
         };
 
 
+        final UpdateJoin join = new UpdateJoin(updateComplications,
+                dataType == ComplicationData.TYPE_ICON);
+
+        // The logo and the reputation are fetched side by side, the complication is published once
+        // both are in, see UpdateJoin.
         logoService.downloadSiteIcon(logoService.getCurrentSiteCodeName(), new Runnable() {
             @Override
             public void run() {
-                getStackExchangeUserId(getApplicationContext(), complicationId, 1, new Runnable() {
+                join.onLogoReady();
+            }
+        });
+
+        if (dataType == ComplicationData.TYPE_ICON) {
+            // Shows nothing but the logo, it is published once the download is done.
+            return;
+        }
+
+        getStackExchangeUserId(getApplicationContext(), complicationId, 1, new Runnable() {
+            @Override
+            public void run() {
+                getLatestData(getApplicationContext(), complicationId, new Runnable() {
                     @Override
                     public void run() {
-                        getLatestData(getApplicationContext(), complicationId, updateComplications);
+                        join.onReputationReady();
                     }
                 });
             }
         });
     }
 
+    /*
+     * Publishes a single update once both the reputation and the logo download are done. A slow
+     * logo only holds the update back for LOGO_DEADLINE_MS after the reputation is in, then the
+     * complication is published without the icon, which the next update picks up. Complications
+     * showing only the logo don't wait for the reputation. Both branches call back on the main
+     * thread.
+     */
+    private static class UpdateJoin {
+        private static final long LOGO_DEADLINE_MS = TimeUnit.SECONDS.toMillis(3);
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final Runnable mPublish;
+        private final boolean mIconOnly;
+        private boolean mReputationReady = false;
+        private boolean mLogoReady = false;
+        private boolean mPublished = false;
+
+        private final Runnable mLogoDeadline = new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Logo not downloaded in time, publishing without it");
+                publish();
+            }
+        };
+
+        UpdateJoin(Runnable publish, boolean iconOnly) {
+            mPublish = publish;
+            mIconOnly = iconOnly;
+        }
+
+        void onReputationReady() {
+            mReputationReady = true;
+            if (mLogoReady) {
+                publish();
+            } else {
+                mHandler.postDelayed(mLogoDeadline, LOGO_DEADLINE_MS);
+            }
+        }
+
+        void onLogoReady() {
+            mLogoReady = true;
+            if (mIconOnly || mReputationReady) {
+                publish();
+            }
+        }
+
+        private void publish() {
+            if (mPublished) {
+                return;
+            }
+            mPublished = true;
+            mHandler.removeCallbacks(mLogoDeadline);
+            mPublish.run();
+        }
+    }
+
     // Updates the stored site specific user ID based on the SE user id - if present
     public void getStackExchangeUserId(final Context context, final int complicationId, final int page, final Runnable callback) {
         final SharedPreferences applicationPreferences =
@@ -193,50 +267,83 @@ public class StackOverflowReputationProviderService extends ComplicationProvider
         final int seUserId = applicationPreferences.getInt(context.getString(R.string.saved_se_user_id_pref), AnalogComplicationConfigRecyclerViewAdapter.JON_SKEET_SE_ID);
         final String siteUrl = siteListService.getUrl(logoService.getCurrentSiteCodeName());
 
-        RequestQueue queue = Volley.newRequestQueue(context);
-        String url = "https://api.stackexchange.com/2.2/users/"+ seUserId +"/associated?page="+ page +"&pagesize=100&filter=!-rYuN5D9&key=" + SO_ACCESS_KEY;
+        int cachedUserId = new AssociatedAccountCache(context).lookup(seUserId, siteUrl);
+        if (cachedUserId != AssociatedAccountCache.UNKNOWN) {
+            if (cachedUserId != AssociatedAccountCache.NO_ACCOUNT) {
+                saveSiteUserId(context, applicationPreferences, cachedUserId);
+            }
+            callback.run();
+            return;
+        }
 
-        JsonObjectRequest jsonRequest = new JsonObjectRequest(Request.Method.GET, url,
-                null,
-                new Response.Listener<JSONObject>() {
+        scanAssociatedAccounts(context, applicationPreferences, seUserId, siteUrl, page,
+                new HashMap<String, Integer>(), callback);
+    }
+
+    /*
+     * Walks all pages of the associated accounts and caches them, see AssociatedAccountCache. The
+     * callback is run as soon as the account on the site is found, the remaining pages are
+     * fetched afterwards.
+     */
+    private void scanAssociatedAccounts(final Context context, final SharedPreferences applicationPreferences,
+                                        final int seUserId, final String siteUrl, final int page,
+                                        final Map<String, Integer> accounts, final Runnable callback) {
+        StackExchangeClients.get(context).associated(seUserId, page,
+                new StackExchangeClient.Callback<JSONObject>() {
                     @Override
                     public void onResponse(JSONObject response) {
-                        boolean hasMore = false;
+                        Runnable pendingCallback = callback;
+                        boolean hasMore;
 
                         try {
                             hasMore = response.getBoolean("has_more");
                             JSONArray items = response.getJSONArray("items");
                             for (int i = 0; i < items.length(); i++) {
                                 String name = items.getJSONObject(i).getString("site_url");
-                                if (name.equals(siteUrl)) {
-                                    int siteUserId = items.getJSONObject(i).getInt("user_id");
-                                    Log.d(TAG, "Found user: " + siteUserId);
-                                    hasMore = false;
-                                    SharedPreferences.Editor edit = applicationPreferences.edit();
+                                int siteUserId = items.getJSONObject(i).getInt("user_id");
+                                accounts.put(name, siteUserId);
 
-                                    edit.putInt(context.getString(R.string.saved_user_id_pref), siteUserId);
-                                    edit.apply();
+                                if (name.equals(siteUrl) && pendingCallback != null) {
+                                    Log.d(TAG, "Found user: " + siteUserId);
+                                    saveSiteUserId(context, applicationPreferences, siteUserId);
+                                    pendingCallback.run();
+                                    pendingCallback = null;
                                 }
                             }
                         } catch (JSONException e) {
+                            // An incomplete scan isn't cached.
+                            if (pendingCallback != null) {
+                                pendingCallback.run();
+                            }
+                            return;
                         }
 
                         if (hasMore) {
-                            getStackExchangeUserId(context, complicationId, page + 1, callback);
+                            scanAssociatedAccounts(context, applicationPreferences, seUserId,
+                                    siteUrl, page + 1, accounts, pendingCallback);
                         } else {
+                            new AssociatedAccountCache(context).put(seUserId, accounts);
+                            if (pendingCallback != null) {
+                                pendingCallback.run();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        Log.i(TAG, "Access to StackOverflow API has failed", error);
+                        Log.i(TAG, error.toString());
+                        if (callback != null) {
                             callback.run();
                         }
                     }
-                }, new Response.ErrorListener() {
-            @Override
-            public void onErrorResponse(VolleyError error) {
-                Log.i(TAG, "Access to StackOverflow API has failed", error);
-                Log.i(TAG, error.toString());
-                callback.run();
-            }
-        });
+                });
+    }
 
-        queue.add(jsonRequest);
+    private static void saveSiteUserId(Context context, SharedPreferences applicationPreferences, int siteUserId) {
+        SharedPreferences.Editor edit = applicationPreferences.edit();
+        edit.putInt(context.getString(R.string.saved_user_id_pref), siteUserId);
+        edit.apply();
     }
 
     public void getLatestData(final Context context, final int complicationId, final Runnable callback) {
@@ -248,12 +355,8 @@ public class StackOverflowReputationProviderService extends ComplicationProvider
         int userId = applicationPreferences.getInt(context.getString(R.string.saved_user_id_pref), AnalogComplicationConfigRecyclerViewAdapter.JON_SKEET_ID);
         String siteName = applicationPreferences.getString(context.getString(R.string.saved_site_name_pref), AnalogComplicationConfigRecyclerViewAdapter.STACKOVERFLOW_NAME);
 
-        RequestQueue queue = Volley.newRequestQueue(context);
-        String url = "https://api.stackexchange.com/2.2/users/" + userId + "?site=" + siteName + "&filter=!-.x-q-ibvTqe&key=" + SO_ACCESS_KEY;
-
-        JsonObjectRequest jsonRequest = new JsonObjectRequest(Request.Method.GET, url,
-                null,
-                new Response.Listener<JSONObject>() {
+        StackExchangeClients.get(context).user(siteName, userId,
+                new StackExchangeClient.Callback<JSONObject>() {
                     @Override
                     public void onResponse(JSONObject response) {
                         int result = 0;
@@ -276,16 +379,14 @@ public class StackOverflowReputationProviderService extends ComplicationProvider
 
                         callback.run();
                     }
-                }, new Response.ErrorListener() {
-            @Override
-            public void onErrorResponse(VolleyError error) {
-                Log.i(TAG, "Access to StackOverflow API has failed", error);
-                Log.i(TAG, error.toString());
-                callback.run();
-            }
-        });
 
-        queue.add(jsonRequest);
+                    @Override
+                    public void onError(Exception error) {
+                        Log.i(TAG, "Access to StackOverflow API has failed", error);
+                        Log.i(TAG, error.toString());
+                        callback.run();
+                    }
+                });
     }
 
     /*
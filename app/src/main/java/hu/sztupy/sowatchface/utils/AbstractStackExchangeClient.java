@@ -0,0 +1,41 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.net.Uri;
+
+import org.json.JSONObject;
+
+/**
+ * Builds the API URLs for a base URL and key, leaving the transport to subclasses.
+ */
+abstract class AbstractStackExchangeClient implements StackExchangeClient {
+    private final String mBaseUrl;
+    private final String mKey;
+
+    AbstractStackExchangeClient(String baseUrl, String key) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        mKey = Uri.encode(key);
+    }
+
+    @Override
+    public void info(String site, Callback<JSONObject> callback) {
+        getJson(mBaseUrl + "info?site=" + Uri.encode(site) + "&filter=!9Z(-wtBWT&key=" + mKey,
+                callback);
+    }
+
+    @Override
+    public void associated(int seUserId, int page, Callback<JSONObject> callback) {
+        getJson(mBaseUrl + "users/" + seUserId + "/associated?page=" + page
+                + "&pagesize=100&filter=!-rYuN5D9&key=" + mKey, callback);
+    }
+
+    @Override
+    public void user(String site, int userId, Callback<JSONObject> callback) {
+        getJson(mBaseUrl + "users/" + userId + "?site=" + Uri.encode(site)
+                + "&filter=!-.x-q-ibvTqe&key=" + mKey, callback);
+    }
+
+    /**
+     * Fetches and parses a JSON response.
+     */
+    abstract void getJson(String url, Callback<JSONObject> callback);
+}
@@ -0,0 +1,106 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the site accounts associated with a Stack Exchange network account, so the site
+ * specific user ID doesn't have to be looked up page by page on every reputation update.
+ * <p>
+ * A full scan of /users/{id}/associated is stored per network user ID as a map of site URL to
+ * user ID, which also answers the lookup after switching to another site. The map expires after
+ * {@link #MAX_AGE_MS}; it is dropped right away when the network user ID is changed, or when a
+ * site it has no account on is selected, as the account might have been created since the scan.
+ */
+public class AssociatedAccountCache {
+    private static final String TAG = "AssociatedAccountCache";
+
+    private static final String PREFERENCES_FILE_KEY =
+            "hu.sztupy.sowatchface.ASSOCIATED_ACCOUNTS_PREFERENCES_FILE_KEY";
+
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    /* The accounts aren't known, or the scan is too old: the API has to be asked. */
+    public static final int UNKNOWN = 0;
+    /* The network user has no account on the site. */
+    public static final int NO_ACCOUNT = -1;
+
+    private final SharedPreferences mPreferences;
+
+    public AssociatedAccountCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_FILE_KEY, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the user ID on the site, {@link #NO_ACCOUNT}, or {@link #UNKNOWN} if the accounts
+     * have to be scanned.
+     */
+    public int lookup(int seUserId, String siteUrl) {
+        JSONObject accounts = getAccounts(seUserId);
+        if (accounts == null) {
+            return UNKNOWN;
+        }
+        return accounts.optInt(siteUrl, NO_ACCOUNT);
+    }
+
+    /**
+     * Stores the result of a full scan, mapping site URLs to user IDs.
+     */
+    public void put(int seUserId, Map<String, Integer> accounts) {
+        mPreferences.edit()
+                .putString(getAccountsKey(seUserId), new JSONObject(accounts).toString())
+                .putLong(getScannedKey(seUserId), System.currentTimeMillis())
+                .apply();
+    }
+
+    public void invalidate(int seUserId) {
+        mPreferences.edit()
+                .remove(getAccountsKey(seUserId))
+                .remove(getScannedKey(seUserId))
+                .apply();
+    }
+
+    /**
+     * Called when another site is selected. Keeps the accounts if the site is among them, so the
+     * switch needs no lookup.
+     */
+    public void invalidateIfMissing(int seUserId, String siteUrl) {
+        if (lookup(seUserId, siteUrl) == NO_ACCOUNT) {
+            invalidate(seUserId);
+        }
+    }
+
+    private JSONObject getAccounts(int seUserId) {
+        long scanned = mPreferences.getLong(getScannedKey(seUserId), 0);
+        long age = System.currentTimeMillis() - scanned;
+        if (age < 0 || age > MAX_AGE_MS) {
+            return null;
+        }
+
+        String accounts = mPreferences.getString(getAccountsKey(seUserId), null);
+        if (accounts == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(accounts);
+        } catch (JSONException e) {
+            Log.w(TAG, "Dropping unreadable accounts of " + seUserId, e);
+            return null;
+        }
+    }
+
+    private static String getAccountsKey(int seUserId) {
+        return AssociatedAccountCache.class.getName() + "." + seUserId + ".accounts";
+    }
+
+    private static String getScannedKey(int seUserId) {
+        return AssociatedAccountCache.class.getName() + "." + seUserId + ".scanned";
+    }
+}
@@ -0,0 +1,116 @@
+package hu.sztupy.sowatchface.utils;
+
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends a call only once while an identical one is still in flight. Both complication providers
+ * and the watch face refresh at the same time and ask for the same site info, logo and user;
+ * callers arriving while a call with the same endpoint and parameters is pending are attached to
+ * it and get its result.
+ */
+class CoalescingStackExchangeClient implements StackExchangeClient {
+    private final StackExchangeClient mClient;
+    private final Map<String, List<Callback<?>>> mPending = new HashMap<>();
+
+    private int mSentCalls = 0;
+    private int mCoalescedCalls = 0;
+
+    CoalescingStackExchangeClient(StackExchangeClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public void info(String site, Callback<JSONObject> callback) {
+        String key = "info|" + site;
+        if (attach(key, callback)) {
+            mClient.info(site, new Fanout<JSONObject>(key));
+        }
+    }
+
+    @Override
+    public void associated(int seUserId, int page, Callback<JSONObject> callback) {
+        String key = "associated|" + seUserId + "|" + page;
+        if (attach(key, callback)) {
+            mClient.associated(seUserId, page, new Fanout<JSONObject>(key));
+        }
+    }
+
+    @Override
+    public void user(String site, int userId, Callback<JSONObject> callback) {
+        String key = "user|" + site + "|" + userId;
+        if (attach(key, callback)) {
+            mClient.user(site, userId, new Fanout<JSONObject>(key));
+        }
+    }
+
+    @Override
+    public void download(String url, Callback<byte[]> callback) {
+        String key = "download|" + url;
+        if (attach(key, callback)) {
+            mClient.download(url, new Fanout<byte[]>(key));
+        }
+    }
+
+    /**
+     * Prints the number of calls sent, and the number answered by a call already in flight.
+     */
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Stack Exchange API: sent=");
+        writer.print(mSentCalls);
+        writer.print(" coalesced=");
+        writer.print(mCoalescedCalls);
+        writer.print(" inFlight=");
+        writer.println(mPending.size());
+    }
+
+    /**
+     * Registers the callback for the key, returns true if the call has to be sent.
+     */
+    private synchronized boolean attach(String key, Callback<?> callback) {
+        List<Callback<?>> callbacks = mPending.get(key);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            mCoalescedCalls++;
+            return false;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(callback);
+        mPending.put(key, callbacks);
+        mSentCalls++;
+        return true;
+    }
+
+    private synchronized List<Callback<?>> detach(String key) {
+        return mPending.remove(key);
+    }
+
+    private class Fanout<T> implements Callback<T> {
+        private final String mKey;
+
+        Fanout(String key) {
+            mKey = key;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onResponse(T response) {
+            for (Callback<?> callback : detach(mKey)) {
+                ((Callback<T>) callback).onResponse(response);
+            }
+        }
+
+        @Override
+        public void onError(Exception error) {
+            for (Callback<?> callback : detach(mKey)) {
+                callback.onError(error);
+            }
+        }
+    }
+}
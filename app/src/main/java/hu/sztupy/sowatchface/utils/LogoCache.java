@@ -0,0 +1,93 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/**
+ * Process wide cache of decoded site logos, shared by the watch face and the complication
+ * providers, so periodic complication updates don't decode and resize the same logo again.
+ * <p>
+ * Logos are kept per site, size and config, up to {@link #MAX_BYTES} in total, least recently
+ * used first out. The cached bitmaps are shared: they must not be recycled, drawn into or handed
+ * to a bitmap pool by whoever gets them.
+ */
+public class LogoCache {
+    private static final String TAG = "LogoCache";
+
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    private static LogoCache sInstance;
+
+    private final LruCache<String, Bitmap> mCache = new LruCache<String, Bitmap>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+    };
+
+    public static synchronized LogoCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new LogoCache();
+        }
+        return sInstance;
+    }
+
+    private LogoCache() {
+    }
+
+    /**
+     * Returns the logo decoded to fit in the given box, see {@link LogoDecoder#decode}. A null
+     * config lets the decoder pick one. Returns null if the file can't be decoded.
+     */
+    public Bitmap get(String site, File file, int maxWidth, int maxHeight, Bitmap.Config config) {
+        String key = site + "|" + maxWidth + "x" + maxHeight + "|" + (config == null ? "auto" : config);
+        Bitmap logo = mCache.get(key);
+        if (logo == null) {
+            if (config == null) {
+                logo = LogoDecoder.decode(file, maxWidth, maxHeight);
+            } else {
+                logo = LogoDecoder.decode(file, maxWidth, maxHeight, config);
+            }
+            if (logo != null) {
+                mCache.put(key, logo);
+            }
+        }
+        return logo;
+    }
+
+    /**
+     * Drops every cached size of the site's logo, after a new logo has been stored.
+     */
+    public void invalidate(String site) {
+        String prefix = site + "|";
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+        Log.d(TAG, "Invalidated the logos of " + site);
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        int hits = mCache.hitCount();
+        int misses = mCache.missCount();
+
+        writer.print(prefix);
+        writer.print("Logo cache: size=");
+        writer.print(mCache.size() / 1024);
+        writer.print("KB max=");
+        writer.print(mCache.maxSize() / 1024);
+        writer.print("KB hits=");
+        writer.print(hits);
+        writer.print(" misses=");
+        writer.print(misses);
+        writer.print(" hitRate=");
+        writer.print(hits + misses == 0 ? 0 : 100 * hits / (hits + misses));
+        writer.print("% evictions=");
+        writer.println(mCache.evictionCount());
+    }
+}
@@ -0,0 +1,153 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Decodes downloaded site logos straight to the size they are shown at. The site icons are
+ * large, decoding them fully just to scale them down to a 36px or 64px logo allocates a big
+ * temporary bitmap on every complication update.
+ * <p>
+ * The bounds are read first. The decoder then subsamples by the largest power of two that keeps
+ * the image at least as large as the target, and scales the rest of the way while decoding. Logos
+ * without transparency are decoded as RGB_565, at half the memory.
+ */
+public class LogoDecoder {
+    private static final String TAG = "LogoDecoder";
+
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int PNG_TRNS = 0x74524E53;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_COLOR_TYPE_ALPHA_MASK = 4;
+
+    private static final int JPEG_SOI = 0xFFD8;
+
+    private LogoDecoder() {
+    }
+
+    /**
+     * Decodes the logo to fit in the given box, keeping its aspect ratio, in the config
+     * {@link #getPreferredConfig} picks. Returns null if the file can't be decoded.
+     */
+    public static Bitmap decode(File file, int maxWidth, int maxHeight) {
+        return decode(file, maxWidth, maxHeight, getPreferredConfig(file));
+    }
+
+    /**
+     * Decodes the logo to fit in the given box, keeping its aspect ratio. A box of 0x0 decodes
+     * the logo at its own size. Returns null if the file can't be decoded.
+     */
+    public static Bitmap decode(File file, int maxWidth, int maxHeight, Bitmap.Config config) {
+        String path = file.getAbsolutePath();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        int targetWidth = width;
+        int targetHeight = height;
+        if (maxWidth > 0 && maxHeight > 0) {
+            // Same fitting as LogoDownloadService.resizeLogo().
+            float ratioBitmap = (float) width / (float) height;
+            float ratioMax = (float) maxWidth / (float) maxHeight;
+            targetWidth = maxWidth;
+            targetHeight = maxHeight;
+            if (ratioMax > ratioBitmap) {
+                targetWidth = (int) ((float) maxHeight * ratioBitmap);
+            } else {
+                targetHeight = (int) ((float) maxWidth / ratioBitmap);
+            }
+            targetWidth = Math.max(1, targetWidth);
+            targetHeight = Math.max(1, targetHeight);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = config;
+        options.inSampleSize = 1;
+        while (width / (options.inSampleSize * 2) >= targetWidth
+                && height / (options.inSampleSize * 2) >= targetHeight) {
+            options.inSampleSize *= 2;
+        }
+
+        // The decoder scales by inTargetDensity / inDensity after subsampling.
+        int sampledWidth = width / options.inSampleSize;
+        if (sampledWidth != targetWidth) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = targetWidth;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap != null) {
+            // The pseudo densities mustn't make canvases scale the logo again when drawing it.
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns RGB_565 for PNG and JPEG files that can't have transparent pixels, ARGB_8888 for
+     * everything else.
+     */
+    public static Bitmap.Config getPreferredConfig(File file) {
+        try {
+            return hasAlpha(file) ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        } catch (IOException e) {
+            Log.d(TAG, "Can't read the header of " + file, e);
+            return Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    /**
+     * Reads the image header to tell whether the image may have transparent pixels: PNG images
+     * with an alpha channel or a tRNS chunk, and anything that isn't PNG or JPEG.
+     */
+    private static boolean hasAlpha(File file) throws IOException {
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long signature = input.readLong();
+            if ((signature >>> 48) == JPEG_SOI) {
+                return false;
+            }
+            if (signature != PNG_SIGNATURE) {
+                return true;
+            }
+
+            // Chunks are length, type, data and CRC; IHDR comes first, tRNS before IDAT.
+            while (true) {
+                int length = input.readInt();
+                int type = input.readInt();
+                if (type == PNG_IHDR) {
+                    input.skipBytes(9);
+                    int colorType = input.readUnsignedByte();
+                    if ((colorType & PNG_COLOR_TYPE_ALPHA_MASK) != 0) {
+                        return true;
+                    }
+                    input.skipBytes(length - 10 + 4);
+                } else if (type == PNG_TRNS) {
+                    return true;
+                } else if (type == PNG_IDAT) {
+                    return false;
+                } else {
+                    input.skipBytes(length + 4);
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -3,15 +3,10 @@ package hu.sztupy.sowatchface.utils;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -21,10 +16,18 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import hu.sztupy.sowatchface.R;
 import hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewAdapter;
-import hu.sztupy.sowatchface.provider.StackOverflowReputationProviderService;
 
 public class LogoDownloadService {
     private static String TAG = "LogoDownloadService";
@@ -34,6 +37,34 @@ public class LogoDownloadService {
 
     public static final String SITE_DOWNLOADED_KEY = "DOWNLOADED";
 
+    /*
+     * Sizes the logo is also stored in, so the common sizes are decoded without any scaling: the
+     * complication icons are 64px, the SWAG design's logo 36px.
+     */
+    private static final int[] LOGO_VARIANT_SIZES = {64, 36};
+
+    /*
+     * Callers waiting for a logo download in flight, by site. The providers and the watch face
+     * ask for the logo at the same time; only the first one downloads and writes it.
+     */
+    private static final Map<String, List<Runnable>> sPendingDownloads = new HashMap<>();
+
+    /*
+     * Writes the downloaded logos and their variants, one at a time, off the main thread. The
+     * thread stops when there is nothing to write.
+     */
+    private static final ThreadPoolExecutor sWriter = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sWriter.allowCoreThreadTimeOut(true);
+    }
+
+    // Sites whose missing variants are queued to be written, so they are only queued once.
+    private static final Set<String> sPendingVariants = new HashSet<>();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     private final Context context;
 
     public LogoDownloadService(Context context) {
@@ -50,80 +81,115 @@ public class LogoDownloadService {
             return;
         }
 
-        final RequestQueue queue = Volley.newRequestQueue(context);
-        final String url = "https://api.stackexchange.com/2.2/info?site=" + site + "&filter=!9Z(-wtBWT&key=" + StackOverflowReputationProviderService.SO_ACCESS_KEY;
+        synchronized (sPendingDownloads) {
+            List<Runnable> waiting = sPendingDownloads.get(site);
+            if (waiting != null) {
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(callback);
+            sPendingDownloads.put(site, waiting);
+        }
 
-        JsonObjectRequest siteDownloadRequest = new JsonObjectRequest(Request.Method.GET, url,
-                null,
-                new Response.Listener<JSONObject>() {
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                List<Runnable> waiting;
+                synchronized (sPendingDownloads) {
+                    waiting = sPendingDownloads.remove(site);
+                }
+                for (Runnable waiter : waiting) {
+                    waiter.run();
+                }
+            }
+        };
+
+        final StackExchangeClient client = StackExchangeClients.get(context);
+
+        client.info(site, new StackExchangeClient.Callback<JSONObject>() {
+            @Override
+            public void onResponse(JSONObject response) {
+                final String iconUrl;
+                try {
+                    iconUrl = response.getJSONArray("items").getJSONObject(0).getJSONObject("site").getString("high_resolution_icon_url");
+                } catch (JSONException e) {
+                    done.run();
+                    return;
+                }
+                Log.d(TAG, "Response is: " + iconUrl);
+
+                client.download(iconUrl, new StackExchangeClient.Callback<byte[]>() {
                     @Override
-                    public void onResponse(JSONObject response) {
-                        try {
-                            final String iconUrl = response.getJSONArray("items").getJSONObject(0).getJSONObject("site").getString("high_resolution_icon_url");
-                            Log.d(TAG, "Response is: " + iconUrl);
-
-                            InputStreamVolleyRequest logoDownloadRequest = new InputStreamVolleyRequest(
-                                    Request.Method.GET,
-                                    iconUrl,
-                                    new Response.Listener<byte[]>() {
-                                        @Override
-                                        public void onResponse(byte[] response) {
-                                            if (response!=null) {
-                                                try {
-                                                    InputStream input = new ByteArrayInputStream(response);
-                                                    File file = getIconFile(site);
-
-                                                    BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(file));
-                                                    byte data[] = new byte[1024];
-
-                                                    int count;
-
-                                                    while ((count = input.read(data)) != -1) {
-                                                        output.write(data, 0, count);
-                                                    }
-
-                                                    output.flush();
-                                                    output.close();
-                                                    input.close();
-
-                                                    SharedPreferences preferences = getComplicationPreferences();
-                                                    SharedPreferences.Editor edit = preferences.edit();
-                                                    edit.putBoolean(getSiteDataKey(site, SITE_DOWNLOADED_KEY), true);
-                                                    edit.apply();
-                                                } catch (IOException error) {
-                                                    Log.i(TAG, "Saving the logo failed", error);
-                                                    Log.i(TAG, error.toString());
-                                                }
-                                            }
-                                            callback.run();
-                                        }
-                                    },
-                                    new Response.ErrorListener() {
-                                        @Override
-                                        public void onErrorResponse(VolleyError error) {
-                                            Log.i(TAG, "Access to StackOverflow Logo Download failed", error);
-                                            Log.i(TAG, error.toString());
-                                            callback.run();
-                                        }
-                                    },
-                                    null
-                            );
-                            queue.add(logoDownloadRequest);
-
-                        } catch (JSONException e) {
-                            callback.run();
+                    public void onResponse(byte[] response) {
+                        if (response != null) {
+                            saveLogo(site, response, done);
+                        } else {
+                            done.run();
                         }
                     }
-                }, new Response.ErrorListener() {
+
+                    @Override
+                    public void onError(Exception error) {
+                        Log.i(TAG, "Access to StackOverflow Logo Download failed", error);
+                        Log.i(TAG, error.toString());
+                        done.run();
+                    }
+                });
+            }
+
             @Override
-            public void onErrorResponse(VolleyError error) {
+            public void onError(Exception error) {
                 Log.i(TAG, "Access to StackOverflow API has failed", error);
                 Log.i(TAG, error.toString());
-                callback.run();
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Writes the logo and its variants on the writer thread, then marks it downloaded and runs
+     * the callback on the main thread.
+     */
+    private void saveLogo(final String site, final byte[] logo, final Runnable callback) {
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeLogo(site, logo);
+                sMainHandler.post(callback);
             }
         });
+    }
+
+    private void writeLogo(String site, byte[] logo) {
+        try {
+            InputStream input = new ByteArrayInputStream(logo);
+            File file = getIconFile(site);
+
+            BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+            byte data[] = new byte[1024];
+
+            int count;
+
+            while ((count = input.read(data)) != -1) {
+                output.write(data, 0, count);
+            }
+
+            output.flush();
+            output.close();
+            input.close();
 
-        queue.add(siteDownloadRequest);
+            writeLogoVariants(site);
+            LogoCache.getInstance().invalidate(site);
+
+            SharedPreferences preferences = getComplicationPreferences();
+            SharedPreferences.Editor edit = preferences.edit();
+            edit.putBoolean(getSiteDataKey(site, SITE_DOWNLOADED_KEY), true);
+            edit.apply();
+        } catch (IOException error) {
+            Log.i(TAG, "Saving the logo failed", error);
+            Log.i(TAG, error.toString());
+        }
     }
 
     public boolean logoExists() {
@@ -135,6 +201,98 @@ public class LogoDownloadService {
         return preferences.getBoolean(getSiteDataKey(site, SITE_DOWNLOADED_KEY), false);
     }
 
+    /**
+     * Returns the site's logo fitting in the given box, decoded once and then shared through the
+     * {@link LogoCache}; don't recycle it. Returns null if the logo hasn't been downloaded.
+     */
+    public Bitmap getLogo(String site, int maxWidth, int maxHeight) {
+        if (!logoExists(site)) {
+            return null;
+        }
+
+        File file = getIconFile(site);
+        if (maxWidth == maxHeight && isLogoVariantSize(maxWidth)) {
+            File variant = getLogoVariantFile(site, maxWidth);
+            if (variant.exists()) {
+                file = variant;
+            } else {
+                // Logos downloaded by older versions don't have the variants yet. The original
+                // is scaled down until they are written.
+                queueLogoVariants(site);
+            }
+        }
+        return LogoCache.getInstance().get(site, file, maxWidth, maxHeight, null);
+    }
+
+    /**
+     * Returns the file the logo is stored in resized to fit in a size x size box.
+     */
+    public File getLogoVariantFile(String site, int size) {
+        return new File(context.getFilesDir(), site + "_" + size + ".png");
+    }
+
+    private static boolean isLogoVariantSize(int size) {
+        for (int variantSize : LOGO_VARIANT_SIZES) {
+            if (variantSize == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void queueLogoVariants(final String site) {
+        synchronized (sPendingVariants) {
+            if (!sPendingVariants.add(site)) {
+                return;
+            }
+        }
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeLogoVariants(site);
+                } finally {
+                    synchronized (sPendingVariants) {
+                        sPendingVariants.remove(site);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores the resized variants of the site's logo next to it. Each is written to a temporary
+     * file first, so readers never see a partially written one. Only runs on the writer thread.
+     */
+    private void writeLogoVariants(String site) {
+        File file = getIconFile(site);
+        for (int size : LOGO_VARIANT_SIZES) {
+            Bitmap variant = LogoDecoder.decode(file, size, size);
+            if (variant == null) {
+                return;
+            }
+
+            File target = getLogoVariantFile(site, size);
+            File temp = new File(target.getPath() + ".tmp");
+            try {
+                FileOutputStream output = new FileOutputStream(temp);
+                try {
+                    variant.compress(Bitmap.CompressFormat.PNG, 100, output);
+                } finally {
+                    output.close();
+                }
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Can't rename " + temp + " to " + target);
+                }
+            } catch (IOException error) {
+                Log.i(TAG, "Saving the " + size + "px logo failed", error);
+                temp.delete();
+            } finally {
+                variant.recycle();
+            }
+        }
+    }
+
     public File getIconFile(String site) {
         final File path = context.getFilesDir();
         String filename = site + ".png";
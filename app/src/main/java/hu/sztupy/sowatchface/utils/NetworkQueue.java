@@ -0,0 +1,95 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one Volley request queue of the app, shared by the watch face, the complication providers
+ * and the logo downloads. Creating a queue per call starts a cache dispatcher and four network
+ * dispatchers every time, and nothing ever stops them.
+ * <p>
+ * This queue runs {@link #NETWORK_THREADS} network dispatchers, and stops all of its threads once
+ * nothing has been queued for {@link #IDLE_SHUTDOWN_MS}; the next request starts them again.
+ * Connections are made with HttpURLConnection, which keeps them alive and reuses them for
+ * subsequent requests to the same host.
+ */
+public class NetworkQueue {
+    private static final String TAG = "NetworkQueue";
+
+    /* The requests go to a single host, a couple of connections are plenty. */
+    private static final int NETWORK_THREADS = 2;
+    private static final long IDLE_SHUTDOWN_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int CACHE_MAX_BYTES = 1024 * 1024;
+
+    private static NetworkQueue sInstance;
+
+    private final RequestQueue mQueue;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private boolean mRunning = false;
+    private int mPendingRequests = 0;
+
+    private final Runnable mStopWhenIdle = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (NetworkQueue.this) {
+                if (mRunning && mPendingRequests == 0) {
+                    mQueue.stop();
+                    mRunning = false;
+                    Log.d(TAG, "Stopped the idle network threads");
+                }
+            }
+        }
+    };
+
+    public static synchronized NetworkQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NetworkQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NetworkQueue(Context context) {
+        mQueue = new RequestQueue(
+                new DiskBasedCache(new File(context.getCacheDir(), "volley"), CACHE_MAX_BYTES),
+                new BasicNetwork(new HurlStack()),
+                NETWORK_THREADS);
+        mQueue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                onFinished();
+            }
+        });
+    }
+
+    /**
+     * Queues the request, starting the network threads if they have been stopped.
+     */
+    public synchronized <T> Request<T> add(Request<T> request) {
+        mHandler.removeCallbacks(mStopWhenIdle);
+        if (!mRunning) {
+            mQueue.start();
+            mRunning = true;
+        }
+        mPendingRequests++;
+        return mQueue.add(request);
+    }
+
+    private synchronized void onFinished() {
+        mPendingRequests--;
+        if (mPendingRequests == 0) {
+            mHandler.postDelayed(mStopWhenIdle, IDLE_SHUTDOWN_MS);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package hu.sztupy.sowatchface.utils;
+
+import org.json.JSONObject;
+
+/**
+ * The Stack Exchange API calls the app makes. Implementations differ in transport only, see
+ * {@link StackExchangeClients#get} for picking one. Callbacks are called on the main thread.
+ */
+public interface StackExchangeClient {
+
+    interface Callback<T> {
+        void onResponse(T response);
+
+        void onError(Exception error);
+    }
+
+    /**
+     * Fetches /info of the site, which includes its logo URLs.
+     */
+    void info(String site, Callback<JSONObject> callback);
+
+    /**
+     * Fetches a page of the network accounts associated with a Stack Exchange user, 100 per page
+     * starting at page 1.
+     */
+    void associated(int seUserId, int page, Callback<JSONObject> callback);
+
+    /**
+     * Fetches a user of the site, including the reputation.
+     */
+    void user(String site, int userId, Callback<JSONObject> callback);
+
+    /**
+     * Downloads a file, e.g. a site logo, as is.
+     */
+    void download(String url, Callback<byte[]> callback);
+}
@@ -0,0 +1,55 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+import hu.sztupy.sowatchface.R;
+
+/**
+ * Hands out the app's {@link StackExchangeClient}. The base URL, key and transport come from
+ * resources, so a build can point the app at a local stand-in of the API, or switch transports
+ * to compare them.
+ * <p>
+ * Identical calls made while one is in flight are sent only once, see
+ * {@link CoalescingStackExchangeClient}.
+ */
+public class StackExchangeClients {
+    private static final String TAG = "StackExchangeClients";
+
+    private static final String TRANSPORT_VOLLEY = "volley";
+    private static final String TRANSPORT_URL_CONNECTION = "urlconnection";
+
+    private static CoalescingStackExchangeClient sInstance;
+
+    private StackExchangeClients() {
+    }
+
+    public static synchronized StackExchangeClient get(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            String baseUrl = appContext.getString(R.string.stackexchange_api_base_url);
+            String key = appContext.getString(R.string.stackexchange_api_key);
+            String transport = appContext.getString(R.string.stackexchange_api_transport);
+
+            StackExchangeClient client;
+            if (TRANSPORT_URL_CONNECTION.equals(transport)) {
+                client = new UrlConnectionStackExchangeClient(baseUrl, key);
+            } else {
+                if (!TRANSPORT_VOLLEY.equals(transport)) {
+                    Log.w(TAG, "Unknown transport " + transport + ", using " + TRANSPORT_VOLLEY);
+                }
+                client = new VolleyStackExchangeClient(appContext, baseUrl, key);
+            }
+            sInstance = new CoalescingStackExchangeClient(client);
+        }
+        return sInstance;
+    }
+
+    public static synchronized void dump(String prefix, PrintWriter writer) {
+        if (sInstance != null) {
+            sInstance.dump(prefix, writer);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the API calls with plain HttpURLConnection on a small thread pool, without Volley's
+ * dispatchers and cache. Responses are read fully and closed, so the connection goes back to the
+ * keep-alive pool for the next call.
+ */
+class UrlConnectionStackExchangeClient extends AbstractStackExchangeClient {
+    private static final int THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    UrlConnectionStackExchangeClient(String baseUrl, String key) {
+        super(baseUrl, key);
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    void getJson(final String url, final Callback<JSONObject> callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject response = new JSONObject(new String(fetch(url), "UTF-8"));
+                    deliverResponse(callback, response);
+                } catch (IOException | JSONException e) {
+                    deliverError(callback, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void download(final String url, final Callback<byte[]> callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliverResponse(callback, fetch(url));
+                } catch (IOException e) {
+                    deliverError(callback, e);
+                }
+            }
+        });
+    }
+
+    private static byte[] fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+
+        int status = connection.getResponseCode();
+        if (status / 100 != 2) {
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                readFully(error);
+            }
+            throw new IOException("HTTP " + status + " for " + url);
+        }
+        return readFully(connection.getInputStream());
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private <T> void deliverResponse(final Callback<T> callback, final T response) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResponse(response);
+            }
+        });
+    }
+
+    private void deliverError(final Callback<?> callback, final Exception error) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(error);
+            }
+        });
+    }
+}
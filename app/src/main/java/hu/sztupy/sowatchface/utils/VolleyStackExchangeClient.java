@@ -0,0 +1,57 @@
+package hu.sztupy.sowatchface.utils;
+
+import android.content.Context;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.JsonObjectRequest;
+
+import org.json.JSONObject;
+
+/**
+ * Runs the API calls on the app's shared Volley queue, see {@link NetworkQueue}.
+ */
+class VolleyStackExchangeClient extends AbstractStackExchangeClient {
+    private final NetworkQueue mQueue;
+
+    VolleyStackExchangeClient(Context context, String baseUrl, String key) {
+        super(baseUrl, key);
+        mQueue = NetworkQueue.getInstance(context);
+    }
+
+    @Override
+    void getJson(String url, final Callback<JSONObject> callback) {
+        mQueue.add(new JsonObjectRequest(Request.Method.GET, url, null,
+                new Response.Listener<JSONObject>() {
+                    @Override
+                    public void onResponse(JSONObject response) {
+                        callback.onResponse(response);
+                    }
+                },
+                new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        callback.onError(error);
+                    }
+                }));
+    }
+
+    @Override
+    public void download(String url, final Callback<byte[]> callback) {
+        mQueue.add(new InputStreamVolleyRequest(Request.Method.GET, url,
+                new Response.Listener<byte[]>() {
+                    @Override
+                    public void onResponse(byte[] response) {
+                        callback.onResponse(response);
+                    }
+                },
+                new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        callback.onError(error);
+                    }
+                },
+                null));
+    }
+}
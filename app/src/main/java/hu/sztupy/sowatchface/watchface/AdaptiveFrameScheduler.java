@@ -0,0 +1,125 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates once a second while the user is looking at the watch and the battery is fine, and
+ * slows down otherwise:
+ * <ul>
+ * <li>every {@link #REDUCED_INTERVAL_MS} when the battery is getting low or the user hasn't
+ * touched the watch for {@link #REDUCED_IDLE_MS},</li>
+ * <li>once a minute in power save mode, on a nearly empty battery, or after
+ * {@link #MINUTE_IDLE_MS} without interaction.</li>
+ * </ul>
+ * The second hand is hidden in both slower modes, see {@link #isSecondHandVisible()}, and the
+ * sweeping second hand only runs while updating once a second.
+ * Battery state is tracked with broadcasts while the watch face is visible, so picking the
+ * interval doesn't need any system calls.
+ */
+class AdaptiveFrameScheduler extends FrameScheduler {
+    private static final long REDUCED_INTERVAL_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MINUTE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long REDUCED_IDLE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long MINUTE_IDLE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final int REDUCED_BATTERY_PERCENT = 30;
+    private static final int MINUTE_BATTERY_PERCENT = 15;
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+
+    private boolean mRegisteredReceiver = false;
+    private int mBatteryPercent = 100;
+    private boolean mCharging = false;
+    private boolean mPowerSaveMode = false;
+    private long mLastUserActivityMillis = System.currentTimeMillis();
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+                if (level >= 0 && scale > 0) {
+                    mBatteryPercent = level * 100 / scale;
+                }
+                mCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            } else {
+                mPowerSaveMode = mPowerManager.isPowerSaveMode();
+            }
+        }
+    };
+
+    AdaptiveFrameScheduler(Context context) {
+        mContext = context;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    @Override
+    void start() {
+        if (mRegisteredReceiver) {
+            return;
+        }
+        mRegisteredReceiver = true;
+        mPowerSaveMode = mPowerManager.isPowerSaveMode();
+
+        // ACTION_BATTERY_CHANGED is sticky, so the current state is delivered right away.
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        mContext.registerReceiver(mBatteryReceiver, filter);
+    }
+
+    @Override
+    void stop() {
+        if (!mRegisteredReceiver) {
+            return;
+        }
+        mRegisteredReceiver = false;
+        mContext.unregisterReceiver(mBatteryReceiver);
+    }
+
+    @Override
+    void onUserActivity(long currentTimeMillis) {
+        mLastUserActivityMillis = currentTimeMillis;
+    }
+
+    @Override
+    long getUpdateInterval(long currentTimeMillis) {
+        long idleMillis = currentTimeMillis - mLastUserActivityMillis;
+        boolean lowBattery = !mCharging && mBatteryPercent <= REDUCED_BATTERY_PERCENT;
+        boolean emptyBattery = !mCharging && mBatteryPercent <= MINUTE_BATTERY_PERCENT;
+
+        if (mPowerSaveMode || emptyBattery || idleMillis >= MINUTE_IDLE_MS) {
+            return MINUTE_INTERVAL_MS;
+        }
+        if (lowBattery || idleMillis >= REDUCED_IDLE_MS) {
+            return REDUCED_INTERVAL_MS;
+        }
+        return BASE_INTERVAL_MS;
+    }
+
+    @Override
+    void dump(String prefix, PrintWriter writer) {
+        super.dump(prefix, writer);
+        writer.print(prefix);
+        writer.print("  battery=");
+        writer.print(mBatteryPercent);
+        writer.print("% charging=");
+        writer.print(mCharging);
+        writer.print(" powerSave=");
+        writer.print(mPowerSaveMode);
+        writer.print(" idle=");
+        writer.print(TimeUnit.MILLISECONDS.toSeconds(
+                System.currentTimeMillis() - mLastUserActivityMillis));
+        writer.println("s");
+    }
+}
@@ -0,0 +1,157 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+
+/**
+ * Draws the hands from the images of the current {@link FaceAssets} set, see
+ * {@link HandBitmap}.
+ * <p>
+ * Interactive mode rotates the colored images. Ambient mode uses the gray copies, or desaturates
+ * the colored images while drawing until the copies have been built, and low-bit screens draw
+ * the thresholded silhouettes in a solid color. Hands stopping exactly on one of the positions of
+ * a {@link HandSpriteAtlas} are copied from the atlas instead of being rotated.
+ */
+class BitmapHandRenderer implements HandRenderer {
+    private final float mPivotX;
+    private final float mPivotY;
+
+    private final Paint mHandPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    /* Desaturates the colored images while drawing, when there are no gray copies. */
+    private final Paint mGrayHandPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    // Sprites are already rendered at their final angle, so no filtering is needed.
+    private final Paint mSpritePaint = new Paint();
+    // Low-bit screens can only show fully on or off pixels, so no filtering either.
+    private final Paint mLowBitPaint = new Paint();
+
+    /* The set drawn from, owned by the FaceAssetCache. Nothing is drawn while it is null. */
+    private FaceAssets mAssets;
+    private boolean mAmbient;
+    private boolean mLowBitAmbient;
+
+    BitmapHandRenderer(float pivotX, float pivotY) {
+        mPivotX = pivotX;
+        mPivotY = pivotY;
+
+        ColorMatrix grayMatrix = new ColorMatrix();
+        grayMatrix.setSaturation(0);
+        mGrayHandPaint.setColorFilter(new ColorMatrixColorFilter(grayMatrix));
+        mLowBitPaint.setColor(SOWatchFace.GRAY);
+    }
+
+    void setAssets(FaceAssets assets) {
+        mAssets = assets;
+    }
+
+    @Override
+    public void setStyle(boolean ambient, boolean lowBitAmbient, boolean burnInProtection,
+                         boolean antiAlias, boolean filterBitmap) {
+        // Burn-in protection is handled by the set, which has no gray copies on those screens.
+        mAmbient = ambient;
+        mLowBitAmbient = lowBitAmbient;
+
+        mHandPaint.setFilterBitmap(filterBitmap);
+        mHandPaint.setAntiAlias(antiAlias);
+        mGrayHandPaint.setFilterBitmap(filterBitmap);
+        mGrayHandPaint.setAntiAlias(antiAlias);
+    }
+
+    @Override
+    public void drawUtcNotch(Canvas canvas, float degrees) {
+        if (mAssets == null) {
+            return;
+        }
+        if (isLowBitFrame()) {
+            mAssets.lowBitMainTick.draw(canvas, degrees, mPivotX, mPivotY, mLowBitPaint);
+        } else {
+            ambientOrActive(mAssets.grayMainTick, mAssets.mainTick)
+                    .draw(canvas, degrees, mPivotX, mPivotY, ambientHandPaint());
+        }
+    }
+
+    @Override
+    public void drawHourHand(Canvas canvas, float degrees) {
+        if (mAssets == null) {
+            return;
+        }
+        if (isLowBitFrame()) {
+            mAssets.lowBitHourHand.draw(canvas, degrees, mPivotX, mPivotY, mLowBitPaint);
+        } else if (!mAmbient || !drawSprite(canvas, mAssets.grayHourHandAtlas, degrees)) {
+            ambientOrActive(mAssets.grayHourHand, mAssets.hourHand)
+                    .draw(canvas, degrees, mPivotX, mPivotY, ambientHandPaint());
+        }
+    }
+
+    @Override
+    public void drawMinuteHand(Canvas canvas, float degrees) {
+        if (mAssets == null) {
+            return;
+        }
+        if (isLowBitFrame()) {
+            mAssets.lowBitMinuteHand.draw(canvas, degrees, mPivotX, mPivotY, mLowBitPaint);
+        } else if (!mAmbient || !drawSprite(canvas, mAssets.grayMinuteHandAtlas, degrees)) {
+            ambientOrActive(mAssets.grayMinuteHand, mAssets.minuteHand)
+                    .draw(canvas, degrees, mPivotX, mPivotY, ambientHandPaint());
+        }
+    }
+
+    @Override
+    public void drawSecondHand(Canvas canvas, float degrees) {
+        // Only drawn in interactive mode. A sweeping hand is between the atlas positions.
+        if (mAssets != null && !drawSprite(canvas, mAssets.secondHandAtlas, degrees)) {
+            mAssets.secondHand.draw(canvas, degrees, mPivotX, mPivotY, mHandPaint);
+        }
+    }
+
+    /**
+     * Draws the sprite of the atlas at the given angle, if the atlas has one exactly there.
+     *
+     * @return whether the sprite was drawn
+     */
+    private boolean drawSprite(Canvas canvas, HandSpriteAtlas atlas, float degrees) {
+        if (atlas == null) {
+            return false;
+        }
+        float position = degrees * atlas.getSteps() / 360f;
+        int step = (int) position;
+        if (step != position) {
+            return false;
+        }
+        atlas.draw(canvas, step, mPivotX, mPivotY, mSpritePaint);
+        return true;
+    }
+
+    private boolean isLowBitFrame() {
+        return mAmbient && mLowBitAmbient && mAssets.lowBitHourHand != null;
+    }
+
+    private Paint ambientHandPaint() {
+        return mAmbient && mAssets.isMissingGrayAssets() ? mGrayHandPaint : mHandPaint;
+    }
+
+    /**
+     * Returns the gray version of a hand in ambient mode. Gray versions aren't built on
+     * screens with burn-in protection, so those fall back to the colored hand. So do sets
+     * without gray copies yet, which are drawn with {@link #ambientHandPaint()}.
+     */
+    private HandBitmap ambientOrActive(HandBitmap gray, HandBitmap active) {
+        return (mAmbient && gray != null) ? gray : active;
+    }
+
+    @Override
+    public long getByteCount() {
+        // Everything but the backgrounds.
+        if (mAssets == null) {
+            return 0;
+        }
+        return mAssets.getByteCount() - byteCount(mAssets.background)
+                - byteCount(mAssets.grayBackground);
+    }
+
+    private static long byteCount(Bitmap bitmap) {
+        return bitmap == null ? 0 : bitmap.getAllocationByteCount();
+    }
+}
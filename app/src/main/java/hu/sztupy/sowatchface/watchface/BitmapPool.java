@@ -0,0 +1,213 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the mutable bitmaps of replaced asset sets around, so the next set can be decoded into
+ * and drawn onto them instead of allocating new large objects. Flipping through sites or designs
+ * then reuses the same few screen sized buffers over and over.
+ * <p>
+ * Bitmaps are bucketed by their allocation size. A request is served by the smallest pooled
+ * bitmap that is big enough, reconfigured to the requested size, as long as it doesn't waste
+ * more than half of its memory. The pool is thread safe: sets are built on a background thread
+ * and released on the engine's thread.
+ */
+class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private final long mMaxBytes;
+
+    /* Pooled bitmaps by allocation byte count. */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    private long mPooledBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mDecodeReuseCount;
+    private int mDroppedCount;
+
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a mutable, fully transparent bitmap of the given size, reused from the pool if
+     * possible.
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width * height * getBytesPerPixel(config));
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, config);
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Gives a bitmap that is no longer drawn back to the pool. Bitmaps that can't be reused, or
+     * don't fit in the pool, are recycled.
+     */
+    void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+
+        int bytes = bitmap.getAllocationByteCount();
+        synchronized (this) {
+            if (mPooledBytes + bytes <= mMaxBytes) {
+                ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+                if (bucket == null) {
+                    bucket = new ArrayDeque<>();
+                    mBuckets.put(bytes, bucket);
+                }
+                bucket.push(bitmap);
+                mPooledBytes += bytes;
+                return;
+            }
+            mDroppedCount++;
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Decodes a resource into a pooled bitmap when one is big enough. The result is mutable.
+     */
+    Bitmap decodeResource(Resources resources, int id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, id, options);
+
+        prepareReuse(options);
+        try {
+            return BitmapFactory.decodeResource(resources, id, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder couldn't use the bitmap after all, e.g. for an unexpected config.
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeResource(resources, id, options);
+        }
+    }
+
+    /**
+     * Decodes a file into a pooled bitmap when one is big enough. The result is mutable, or null
+     * if the file can't be decoded.
+     */
+    Bitmap decodeFile(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        prepareReuse(options);
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * Turns bounds-only options into options for the real decode, reusing a pooled bitmap.
+     */
+    private void prepareReuse(BitmapFactory.Options options) {
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inScaled = false;
+        options.inBitmap = take(options.outWidth * options.outHeight
+                * getBytesPerPixel(Bitmap.Config.ARGB_8888));
+        if (options.inBitmap != null) {
+            synchronized (this) {
+                mDecodeReuseCount++;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the smallest pooled bitmap with at least the given allocation size.
+     */
+    private synchronized Bitmap take(int bytes) {
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBuckets.ceilingEntry(bytes);
+        if (entry == null || entry.getKey() > bytes * 2) {
+            mMissCount++;
+            return null;
+        }
+
+        Bitmap bitmap = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            mBuckets.remove(entry.getKey());
+        }
+        mPooledBytes -= entry.getKey();
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Recycles every pooled bitmap.
+     *
+     * @return the number of bytes freed
+     */
+    long clear() {
+        long freedBytes;
+        ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+        synchronized (this) {
+            for (ArrayDeque<Bitmap> bucket : mBuckets.values()) {
+                bitmaps.addAll(bucket);
+            }
+            mBuckets.clear();
+            freedBytes = mPooledBytes;
+            mPooledBytes = 0;
+        }
+
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        Log.d(TAG, "Cleared " + bitmaps.size() + " bitmaps, " + (freedBytes / 1024) + "KB");
+        return freedBytes;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Bitmap pool: pooled=");
+        writer.print(mPooledBytes / 1024);
+        writer.print("KB max=");
+        writer.print(mMaxBytes / 1024);
+        writer.print("KB hits=");
+        writer.print(mHitCount);
+        writer.print(" misses=");
+        writer.print(mMissCount);
+        writer.print(" decodeReuses=");
+        writer.print(mDecodeReuseCount);
+        writer.print(" dropped=");
+        writer.println(mDroppedCount);
+    }
+}
@@ -0,0 +1,488 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import hu.sztupy.sowatchface.R;
+import hu.sztupy.sowatchface.utils.LogoDownloadService;
+import hu.sztupy.sowatchface.utils.SiteListService;
+
+/**
+ * Builds the {@link FaceAssets} of the watch face: decodes the background and hand images,
+ * draws the site logo onto the background, scales everything to the screen and creates the
+ * grayscale versions used in ambient mode.
+ * <p>
+ * This is slow, so {@link SOWatchFace} runs it on a background thread. The builder doesn't touch
+ * any engine state, everything it needs is passed in a {@link Spec}. Finished sets are kept in a
+ * {@link FaceAssetDiskCache}, so they only have to be prepared once per design, site and screen.
+ */
+class FaceAssetBuilder {
+    private static final String TAG = "FaceAssetBuilder";
+
+    /* Width of the original images in drawable-nodpi, the logo layout is given in these pixels. */
+    private static final int DESIGN_SIZE = 320;
+
+    /*
+     * Upper limit for the memory used by the pre-rendered hand sprites. Hands that don't fit are
+     * rotated live instead.
+     */
+    private static final long SPRITE_ATLAS_MAX_BYTES = 6 * 1024 * 1024;
+
+    /*
+     * Workers preparing the images of a set in parallel, one per core up to a quad-core watch.
+     * Idle workers exit, so nothing is kept running between builds.
+     */
+    private static final int WORKER_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 5;
+
+    /**
+     * The inputs the assets depend on.
+     */
+    static class Spec {
+        final boolean designPreference;
+        final boolean spriteAtlasPreference;
+        final boolean burnInProtection;
+        final boolean lowBitAmbient;
+        final GrayscaleStrategy grayscaleStrategy;
+        final String siteCode;
+        final int screenWidth;
+        final int screenHeight;
+
+        Spec(boolean designPreference, boolean spriteAtlasPreference, boolean burnInProtection,
+             boolean lowBitAmbient, GrayscaleStrategy grayscaleStrategy, String siteCode,
+             int screenWidth, int screenHeight) {
+            this.designPreference = designPreference;
+            this.spriteAtlasPreference = spriteAtlasPreference;
+            this.burnInProtection = burnInProtection;
+            this.lowBitAmbient = lowBitAmbient;
+            this.grayscaleStrategy = grayscaleStrategy;
+            this.siteCode = siteCode;
+            this.screenWidth = screenWidth;
+            this.screenHeight = screenHeight;
+        }
+
+        /**
+         * Returns whether ambient mode draws the grayscale copies of the images. Screens with
+         * burn-in protection draw the colored images, and low-bit screens draw the thresholded
+         * silhouettes instead.
+         */
+        boolean needsGrayAssets() {
+            return !burnInProtection && !lowBitAmbient;
+        }
+
+        /**
+         * Returns whether the gray copies are built together with the colored images.
+         */
+        boolean precomputesGrayAssets() {
+            return needsGrayAssets() && grayscaleStrategy == GrayscaleStrategy.PRECOMPUTED;
+        }
+
+        @Override
+        public String toString() {
+            return "Spec{" +
+                    "design=" + designPreference +
+                    ", spriteAtlas=" + spriteAtlasPreference +
+                    ", burnInProtection=" + burnInProtection +
+                    ", lowBitAmbient=" + lowBitAmbient +
+                    ", grayscale=" + grayscaleStrategy +
+                    ", site='" + siteCode + '\'' +
+                    ", size=" + screenWidth + "x" + screenHeight +
+                    '}';
+        }
+    }
+
+    private final Resources mResources;
+    private final LogoDownloadService mLogoService;
+    private final SiteListService mSiteListService;
+    private final FaceAssetDiskCache mDiskCache;
+    private final BitmapPool mBitmapPool;
+    private final ThreadPoolExecutor mWorkers;
+
+    FaceAssetBuilder(Resources resources, LogoDownloadService logoService,
+                     SiteListService siteListService, FaceAssetDiskCache diskCache,
+                     BitmapPool bitmapPool) {
+        mResources = resources;
+        mLogoService = logoService;
+        mSiteListService = siteListService;
+        mDiskCache = diskCache;
+        mBitmapPool = bitmapPool;
+
+        mWorkers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the worker threads once the work already queued is done. Nothing may be built
+     * afterwards.
+     */
+    void release() {
+        mWorkers.shutdown();
+    }
+
+    FaceAssets build(Spec spec) {
+        long startTime = System.currentTimeMillis();
+
+        // Taken before the logo is decoded, see FaceAssetDiskCache.getKey().
+        String cacheKey = mDiskCache.getKey(spec);
+        FaceAssets assets = mDiskCache.load(cacheKey, spec);
+        if (assets != null) {
+            Log.d(TAG, "Loaded cached assets for " + spec + " in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        } else {
+            assets = prepareAssets(spec);
+            Log.d(TAG, "Prepared assets for " + spec + " in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+            // Compressing the sheet takes longer than the rest, it's written once the set is out.
+            mDiskCache.store(cacheKey, assets);
+        }
+
+        // Thresholding is cheap, so the low-bit silhouettes are made from the cached hands.
+        if (spec.lowBitAmbient) {
+            initLowBitBitmaps(assets);
+        }
+
+        if (spec.spriteAtlasPreference) {
+            initHandSpriteAtlases(assets, spec.screenWidth / 2f, spec.screenHeight / 2f);
+        }
+
+        Log.d(TAG, "Built assets for " + spec + " in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        return assets;
+    }
+
+    private FaceAssets prepareAssets(final Spec spec) {
+        final FaceAssets assets = new FaceAssets(spec);
+        final Intermediates intermediates = new Intermediates();
+        final int backgroundId = resolveFaceAsset(
+                spec.designPreference ? R.drawable.bg_2 : R.drawable.bg_1, spec.screenWidth);
+        // Pre-scaled images are exactly as wide as the screen, so the layout can be known early.
+        final float layoutScale = backgroundId == R.drawable.bg_1 || backgroundId == R.drawable.bg_2
+                ? 1f : spec.screenWidth / (float) DESIGN_SIZE;
+
+        TaskGraph graph = new TaskGraph(mWorkers);
+
+        TaskGraph.Task decodeBackground = graph.add("decode background", new Runnable() {
+            @Override
+            public void run() {
+                // Decoded into a mutable, pooled bitmap, so the logo can be drawn on it directly.
+                intermediates.background = mBitmapPool.decodeResource(mResources, backgroundId);
+            }
+        });
+        TaskGraph.Task decodeLogo = graph.add("decode logo", new Runnable() {
+            @Override
+            public void run() {
+                intermediates.logo = decodeLogo(spec, layoutScale);
+            }
+        });
+        TaskGraph.Task drawLogo = graph.add("draw logo", new Runnable() {
+            @Override
+            public void run() {
+                if (intermediates.logo != null) {
+                    // The logo is shared through the LogoCache, it's neither recycled nor pooled.
+                    drawLogo(spec, intermediates.background, intermediates.logo, layoutScale);
+                }
+            }
+        }, decodeBackground, decodeLogo);
+        TaskGraph.Task scaleBackground = graph.add("scale background", new Runnable() {
+            @Override
+            public void run() {
+                assets.background = scaleBackground(intermediates.background, spec.screenWidth);
+            }
+        }, drawLogo);
+
+        TaskGraph.Task mainTick = graph.add("main tick", new Runnable() {
+            @Override
+            public void run() {
+                assets.mainTick = createHand(R.drawable.main_tick, spec.screenWidth);
+            }
+        });
+        TaskGraph.Task hourHand = graph.add("hour hand", new Runnable() {
+            @Override
+            public void run() {
+                assets.hourHand = createHand(R.drawable.hour, spec.screenWidth);
+            }
+        });
+        TaskGraph.Task minuteHand = graph.add("minute hand", new Runnable() {
+            @Override
+            public void run() {
+                assets.minuteHand = createHand(R.drawable.minute, spec.screenWidth);
+            }
+        });
+        graph.add("second hand", new Runnable() {
+            @Override
+            public void run() {
+                assets.secondHand = createHand(R.drawable.second, spec.screenWidth);
+            }
+        });
+
+        /*
+         * Create a gray version of the image only if it will look nice on the device in
+         * ambient mode. That means we don't want devices that support burn-in
+         * protection (slight movements in pixels, not great for images going all the way to
+         * edges) and low ambient mode (degrades image quality).
+         *
+         * Also, if your watch face will know about all images ahead of time (users aren't
+         * selecting their own photos for the watch face), it will be more
+         * efficient to create a black/white version (png, etc.) and load that when you need it.
+         */
+        if (spec.precomputesGrayAssets()) {
+            addGrayTasks(graph, assets, assets, scaleBackground, mainTick, hourHand, minuteHand);
+        }
+
+        graph.run();
+        Log.d(TAG, "Prepare pipeline took " + graph.getWallTimeMillis() + "ms, "
+                + graph.getCpuTimeMillis() + "ms CPU on " + WORKER_THREADS + " threads");
+        return assets;
+    }
+
+    /**
+     * Bitmaps handed from one step of {@link #prepareAssets} to the next.
+     */
+    private static class Intermediates {
+        Bitmap background;
+        Bitmap logo;
+    }
+
+    /**
+     * Returns the variant of one of the watch face images pre-scaled to the screen width at build
+     * time, see generateScaledFaceAssets in the app's build.gradle. Without one the
+     * {@link #DESIGN_SIZE} original is returned.
+     */
+    private int resolveFaceAsset(int id, int screenWidth) {
+        String scaledName = mResources.getResourceEntryName(id) + "_" + screenWidth;
+        int scaledId = mResources.getIdentifier(
+                scaledName, "drawable", mResources.getResourcePackageName(id));
+        if (scaledId == 0 && screenWidth != DESIGN_SIZE) {
+            Log.d(TAG, "No pre-scaled " + scaledName + ", scaling at runtime");
+        }
+        return scaledId != 0 ? scaledId : id;
+    }
+
+    /**
+     * Scales the background to the screen width, unless it was pre-scaled already.
+     */
+    private Bitmap scaleBackground(Bitmap background, int screenWidth) {
+        /* Scale loaded background image (more efficient) if surface dimensions change. */
+        float scale = ((float) screenWidth) / (float) background.getWidth();
+        if (scale == 1f) {
+            return background;
+        }
+
+        Bitmap scaled = mBitmapPool.get(
+                (int) (background.getWidth() * scale),
+                (int) (background.getHeight() * scale),
+                Bitmap.Config.ARGB_8888);
+        new Canvas(scaled).drawBitmap(background, null,
+                new Rect(0, 0, scaled.getWidth(), scaled.getHeight()),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        mBitmapPool.put(background);
+        return scaled;
+    }
+
+    /**
+     * The hand images are full-screen layers sharing the background's coordinate system, so they
+     * are cropped and scaled to the screen width the same way as the background.
+     */
+    private HandBitmap createHand(int id, int screenWidth) {
+        Bitmap source = mBitmapPool.decodeResource(mResources, resolveFaceAsset(id, screenWidth));
+        return HandBitmap.create(source, screenWidth / (float) source.getWidth(), mBitmapPool);
+    }
+
+    /**
+     * Returns the site logo at the size the design draws it, or returns null if there is none.
+     * The logo layout is given in {@link #DESIGN_SIZE} coordinates, and scaled by the given
+     * factor for pre-scaled backgrounds.
+     */
+    private Bitmap decodeLogo(Spec spec, float layoutScale) {
+        // for the SWAG watch we draw a small logo, for the simple watch a large one
+        int size = Math.round((spec.designPreference ? 36 : 150) * layoutScale);
+        return mLogoService.getLogo(spec.siteCode, size, size);
+    }
+
+    /**
+     * Draws the resized site logo onto the mutable background.
+     */
+    private void drawLogo(Spec spec, Bitmap mutableBackground, Bitmap logo, float layoutScale) {
+        Canvas canvas = new Canvas(mutableBackground);
+
+        if (spec.designPreference) {
+            // for the SWAG watch we draw a small logo, and the title text nearby
+            canvas.drawBitmap(logo, 144 * layoutScale - logo.getWidth() / 2,
+                    113 * layoutScale - logo.getHeight() / 2, null);
+
+            Paint font = new Paint();
+            font.setTypeface(Typeface.create(Typeface.SERIF, Typeface.BOLD));
+            font.setColor(SOWatchFace.ORANGE);
+            font.setTextAlign(Paint.Align.LEFT);
+            font.setTextSize(24 * layoutScale);
+
+            String shortName = mSiteListService.getShortName(spec.siteCode);
+            canvas.drawText(shortName, 167 * layoutScale, 123 * layoutScale, font);
+        } else {
+            // for the simple watch we just draw the logo dimmed
+            Paint alphaPaint = new Paint();
+            alphaPaint.setAlpha(110);
+
+            canvas.drawBitmap(logo, 160 * layoutScale - logo.getWidth() / 2,
+                    160 * layoutScale - logo.getHeight() / 2, alphaPaint);
+        }
+    }
+
+    /**
+     * Builds the gray copies of an already built set, for the {@link GrayscaleStrategy#LAZY}
+     * strategy. The copies, and their sprite atlases, are returned in a new set holding nothing
+     * else; the source set is only read.
+     */
+    FaceAssets buildGrayAssets(FaceAssets source) {
+        long startTime = System.currentTimeMillis();
+
+        FaceAssets gray = new FaceAssets(source.spec);
+        TaskGraph graph = new TaskGraph(mWorkers);
+        addGrayTasks(graph, source, gray, null, null, null, null);
+        graph.run();
+
+        if (source.spec.spriteAtlasPreference) {
+            long remainingBytes = SPRITE_ATLAS_MAX_BYTES;
+            if (source.secondHandAtlas != null) {
+                remainingBytes -= source.secondHandAtlas.getByteCount();
+            }
+            initGrayHandSpriteAtlases(gray,
+                    source.spec.screenWidth / 2f, source.spec.screenHeight / 2f, remainingBytes);
+        }
+
+        Log.d(TAG, "Built gray assets for " + source.spec + " in "
+                + (System.currentTimeMillis() - startTime) + "ms, desaturating took "
+                + graph.getWallTimeMillis() + "ms, " + graph.getCpuTimeMillis() + "ms CPU");
+        return gray;
+    }
+
+    /**
+     * Adds the steps desaturating the source images into the target set. Each step depends on
+     * the step producing its source image, or on nothing if that is null.
+     */
+    private void addGrayTasks(TaskGraph graph, final FaceAssets source, final FaceAssets target,
+                              TaskGraph.Task background, TaskGraph.Task mainTick,
+                              TaskGraph.Task hourHand, TaskGraph.Task minuteHand) {
+        graph.add("gray background", new Runnable() {
+            @Override
+            public void run() {
+                target.grayBackground = createGrayBitmap(source.background);
+            }
+        }, background);
+        graph.add("gray main tick", new Runnable() {
+            @Override
+            public void run() {
+                target.grayMainTick = source.mainTick.withBitmap(
+                        createGrayBitmap(source.mainTick.getBitmap()));
+            }
+        }, mainTick);
+        graph.add("gray hour hand", new Runnable() {
+            @Override
+            public void run() {
+                target.grayHourHand = source.hourHand.withBitmap(
+                        createGrayBitmap(source.hourHand.getBitmap()));
+            }
+        }, hourHand);
+        graph.add("gray minute hand", new Runnable() {
+            @Override
+            public void run() {
+                target.grayMinuteHand = source.minuteHand.withBitmap(
+                        createGrayBitmap(source.minuteHand.getBitmap()));
+            }
+        }, minuteHand);
+    }
+
+    private Bitmap createGrayBitmap(Bitmap source) {
+        // A paint per call, the steps run on different threads.
+        Paint grayPaint = new Paint();
+        ColorMatrix colorMatrix = new ColorMatrix();
+        colorMatrix.setSaturation(0);
+        grayPaint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
+
+        Bitmap gray = mBitmapPool.get(
+                source.getWidth(),
+                source.getHeight(),
+                Bitmap.Config.ARGB_8888);
+
+        Canvas canvas = new Canvas(gray);
+        canvas.drawBitmap(source, 0, 0, grayPaint);
+        return gray;
+    }
+
+    /**
+     * Creates 1-bit silhouettes of the ambient mode hands: every pixel that is at least half
+     * opaque becomes fully opaque, everything else transparent. They are stored as ALPHA_8, and
+     * drawn with a solid color without filtering, so low-bit screens get crisp edges.
+     */
+    private void initLowBitBitmaps(FaceAssets assets) {
+        assets.lowBitMainTick = assets.mainTick.withBitmap(createLowBitBitmap(assets.mainTick.getBitmap()));
+        assets.lowBitHourHand = assets.hourHand.withBitmap(createLowBitBitmap(assets.hourHand.getBitmap()));
+        assets.lowBitMinuteHand = assets.minuteHand.withBitmap(createLowBitBitmap(assets.minuteHand.getBitmap()));
+    }
+
+    private Bitmap createLowBitBitmap(Bitmap source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] pixels = new int[width * height];
+        source.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (pixels[i] >>> 24) >= 0x80 ? Color.WHITE : Color.TRANSPARENT;
+        }
+
+        Bitmap thresholded = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        Bitmap alpha = thresholded.extractAlpha();
+        thresholded.recycle();
+        return alpha;
+    }
+
+    /**
+     * Pre-renders the discrete positions of the hands. The second hand is built first as it is
+     * drawn most often; any hand that would push the total over {@link #SPRITE_ATLAS_MAX_BYTES}
+     * falls back to live rotation.
+     */
+    private void initHandSpriteAtlases(FaceAssets assets, float centerX, float centerY) {
+        long remainingBytes = SPRITE_ATLAS_MAX_BYTES;
+
+        // One position per second.
+        assets.secondHandAtlas = HandSpriteAtlas.create(
+                assets.secondHand, 60, centerX, centerY, remainingBytes);
+        if (assets.secondHandAtlas != null) {
+            remainingBytes -= assets.secondHandAtlas.getByteCount();
+        }
+
+        initGrayHandSpriteAtlases(assets, centerX, centerY, remainingBytes);
+    }
+
+    private void initGrayHandSpriteAtlases(FaceAssets assets, float centerX, float centerY,
+                                           long remainingBytes) {
+        if (assets.grayMinuteHand != null) {
+            // In ambient mode the minute hand moves once a minute...
+            assets.grayMinuteHandAtlas = HandSpriteAtlas.create(
+                    assets.grayMinuteHand, 60, centerX, centerY, remainingBytes);
+            if (assets.grayMinuteHandAtlas != null) {
+                remainingBytes -= assets.grayMinuteHandAtlas.getByteCount();
+            }
+        }
+
+        if (assets.grayHourHand != null) {
+            // ...and the hour hand moves half a degree every minute.
+            assets.grayHourHandAtlas = HandSpriteAtlas.create(
+                    assets.grayHourHand, 12 * 60, centerX, centerY, remainingBytes);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the {@link FaceAssets} drawn by an engine: builds them on a background thread, hands
+ * finished sets over on the engine's thread, and gives memory back when the system runs low.
+ * <p>
+ * Under memory pressure the gray copies are dropped first, ambient mode then desaturates the
+ * colored images while drawing. When memory gets critical the background goes as well. Dropped
+ * images are rebuilt in the background the next time they are needed, from the disk cache where
+ * possible. All methods must be called on the engine's thread.
+ */
+class FaceAssetCache {
+    private static final String TAG = "FaceAssetCache";
+
+    /**
+     * Notified on the engine's thread when the drawn set changes.
+     */
+    interface Listener {
+        void onAssetsChanged(FaceAssets assets);
+    }
+
+    private final FaceAssetBuilder mBuilder;
+    private final BitmapPool mBitmapPool;
+    private final Handler mHandler;
+    private final GrayscaleStrategy mGrayscaleStrategy;
+    private final Listener mListener;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /*
+     * The set currently drawn. A complete new set replaces it in a single assignment, so the
+     * engine never draws a mix of old and new assets. Null until the first set has been built.
+     */
+    private FaceAssets mAssets;
+    // Incremented for every rebuild request, so results of outdated builds can be dropped.
+    private volatile int mGeneration = 0;
+    // The generation mAssets was built for; differs from mGeneration while rebuilding.
+    private int mAssetsGeneration = -1;
+    // The builder reads the colored images while building gray copies, they mustn't be trimmed.
+    private boolean mGrayBuildInFlight = false;
+    // Whether the gray copies of the current set were dropped by onTrimMemory().
+    private boolean mGrayTrimmed = false;
+
+    private int mTrimCount;
+    private long mTrimmedBytes;
+    private int mGrayRebuildCount;
+    private int mBackgroundRebuildCount;
+
+    FaceAssetCache(FaceAssetBuilder builder, BitmapPool bitmapPool, Handler handler,
+                   GrayscaleStrategy grayscaleStrategy, Listener listener) {
+        mBuilder = builder;
+        mBitmapPool = bitmapPool;
+        mHandler = handler;
+        mGrayscaleStrategy = grayscaleStrategy;
+        mListener = listener;
+    }
+
+    FaceAssets get() {
+        return mAssets;
+    }
+
+    GrayscaleStrategy getGrayscaleStrategy() {
+        return mGrayscaleStrategy;
+    }
+
+    /**
+     * Starts building a new set in the background. The current set keeps being drawn until the
+     * new one is complete.
+     */
+    void request(final FaceAssetBuilder.Spec spec) {
+        if (mExecutor.isShutdown()) {
+            // The logo download can finish after the engine has been destroyed.
+            return;
+        }
+
+        final int generation = ++mGeneration;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration) {
+                    // A newer request is already queued, don't bother.
+                    return;
+                }
+
+                final FaceAssets assets;
+                try {
+                    assets = mBuilder.build(spec);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Building watch face assets failed", e);
+                    return;
+                }
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onAssetsBuilt(generation, assets);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onAssetsBuilt(int generation, FaceAssets assets) {
+        if (mExecutor.isShutdown()) {
+            assets.recycle();
+            return;
+        }
+        if (generation != mGeneration) {
+            assets.releaseTo(mBitmapPool);
+            return;
+        }
+
+        FaceAssets oldAssets = mAssets;
+        mAssets = assets;
+        mAssetsGeneration = generation;
+        mGrayTrimmed = false;
+        if (oldAssets != null) {
+            // The next rebuild, e.g. for the next site the user flips to, reuses these.
+            oldAssets.releaseTo(mBitmapPool);
+        }
+        logMemory();
+        mListener.onAssetsChanged(mAssets);
+    }
+
+    /**
+     * Starts building the gray copies of the current set in the background, if they are
+     * missing: the {@link GrayscaleStrategy#LAZY} strategy builds them on first use, and any
+     * strategy but {@link GrayscaleStrategy#DRAW_TIME_FILTER} rebuilds them after a trim.
+     */
+    void requestGrayAssets() {
+        if (mGrayscaleStrategy == GrayscaleStrategy.DRAW_TIME_FILTER
+                || mAssets == null
+                || !mAssets.isMissingGrayAssets()
+                || mGrayBuildInFlight
+                || mAssetsGeneration != mGeneration
+                || mExecutor.isShutdown()) {
+            // While a new set is being built, the engine asks again once it arrives.
+            return;
+        }
+        if (mAssets.background == null) {
+            // The gray copies are made from the colored images, the rebuilt set brings both.
+            requestBackground();
+            return;
+        }
+        mGrayBuildInFlight = true;
+        if (mGrayTrimmed) {
+            mGrayTrimmed = false;
+            mGrayRebuildCount++;
+        }
+
+        final int generation = mAssetsGeneration;
+        final FaceAssets source = mAssets;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * The source set is only recycled after a newer build completes, which runs on
+                 * this same executor, and it isn't trimmed or released while this is in flight,
+                 * so it stays valid while this runs.
+                 */
+                FaceAssets gray = null;
+                if (generation == mGeneration) {
+                    try {
+                        gray = mBuilder.buildGrayAssets(source);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Building gray watch face assets failed", e);
+                    }
+                }
+
+                final FaceAssets result = gray;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onGrayAssetsBuilt(source, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onGrayAssetsBuilt(FaceAssets source, FaceAssets gray) {
+        mGrayBuildInFlight = false;
+        if (mExecutor.isShutdown()) {
+            // release() left the images to this build, now nothing reads them any more.
+            if (gray != null) {
+                gray.recycle();
+            }
+            recycle();
+            return;
+        }
+        if (gray == null) {
+            return;
+        }
+        if (source != mAssets) {
+            gray.releaseTo(mBitmapPool);
+            return;
+        }
+
+        mAssets.takeGrayAssets(gray);
+        logMemory();
+        mListener.onAssetsChanged(mAssets);
+    }
+
+    /**
+     * Rebuilds the current set if its background has been trimmed. The rebuilt set is usually
+     * read back from the disk cache.
+     */
+    void requestBackground() {
+        if (mAssets == null || mAssets.background != null || mAssetsGeneration != mGeneration) {
+            return;
+        }
+        mBackgroundRebuildCount++;
+        request(mAssets.spec);
+    }
+
+    /**
+     * Frees images the current set can be drawn without, depending on how much memory the
+     * system needs. The background is only dropped while the face isn't on screen, or once the
+     * system starts killing background processes, as rebuilding it costs a visible frame.
+     *
+     * @param level one of the {@link ComponentCallbacks2} TRIM_MEMORY_ levels
+     * @param visible whether the watch face is on screen
+     */
+    void onTrimMemory(int level, boolean visible) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        mTrimCount++;
+
+        // Spare bitmaps go first, nothing is drawn from them.
+        long freedBytes = mBitmapPool.clear();
+
+        if (mAssets != null && mAssets.spec.needsGrayAssets() && !mAssets.isMissingGrayAssets()) {
+            freedBytes += mAssets.trimGrayAssets();
+            mGrayTrimmed = true;
+        }
+
+        boolean dropBackground = !visible || level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+        if (dropBackground && mAssets != null && mAssets.background != null) {
+            if (mGrayBuildInFlight) {
+                Log.i(TAG, "Not trimming the background while gray copies are built from it");
+            } else {
+                freedBytes += mAssets.trimBackground();
+            }
+        }
+
+        mTrimmedBytes += freedBytes;
+        Log.i(TAG, "Trim level " + level + " freed " + (freedBytes / 1024) + "KB");
+    }
+
+    /**
+     * Stops building, releases the builder and the current set. The cache can't be used
+     * afterwards.
+     * <p>
+     * A gray build can't be interrupted while it reads the colored images, so if one is in
+     * flight the images are only recycled once it is done.
+     */
+    void release() {
+        // A build cut off from the builder's workers would wait for its steps forever, so they
+        // are only stopped after the build running now.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBuilder.release();
+            }
+        });
+        mExecutor.shutdown();
+        // Builds still queued see a newer generation and skip their work.
+        mGeneration++;
+        if (mGrayBuildInFlight) {
+            return;
+        }
+        recycle();
+    }
+
+    private void recycle() {
+        if (mAssets != null) {
+            mAssets.recycle();
+            mAssets = null;
+        }
+        mBitmapPool.clear();
+    }
+
+    private void logMemory() {
+        Log.d(TAG, "Assets use " + (mAssets.getByteCount() / 1024) + "KB, of which "
+                + (mAssets.getGrayByteCount() / 1024) + "KB gray (" + mGrayscaleStrategy + ")");
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Assets: grayscale=");
+        writer.print(mGrayscaleStrategy);
+        writer.print(" total=");
+        writer.print(mAssets == null ? 0 : mAssets.getByteCount() / 1024);
+        writer.print("KB gray=");
+        writer.print(mAssets == null ? 0 : mAssets.getGrayByteCount() / 1024);
+        writer.println("KB");
+
+        writer.print(prefix);
+        writer.print("  trims=");
+        writer.print(mTrimCount);
+        writer.print(" trimmed=");
+        writer.print(mTrimmedBytes / 1024);
+        writer.print("KB grayRebuilds=");
+        writer.print(mGrayRebuildCount);
+        writer.print(" backgroundRebuilds=");
+        writer.println(mBackgroundRebuildCount);
+    }
+}
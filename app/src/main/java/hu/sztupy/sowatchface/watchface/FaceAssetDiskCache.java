@@ -0,0 +1,393 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import hu.sztupy.sowatchface.BuildConfig;
+import hu.sztupy.sowatchface.utils.LogoDownloadService;
+
+/**
+ * Keeps the finished, screen sized bitmaps of a {@link FaceAssets} set on disk, so a cold start
+ * doesn't need to decode, composite, scale and desaturate everything again.
+ * <p>
+ * All bitmaps of a set are packed into a single PNG sheet, with a small JSON index describing
+ * where each bitmap is, so loading a set takes one decode. Entries are keyed by everything the
+ * assets depend on: the design, site, screen size, whether grayscale copies are needed, the site
+ * logo file and the app version. A new logo or a new app version therefore simply misses, and
+ * stale entries are pruned when new ones are written.
+ * <p>
+ * Entries are written one at a time on a single thread shared by all engines, to temporary files
+ * renamed into place when complete, so readers only ever see whole entries.
+ */
+class FaceAssetDiskCache {
+    private static final String TAG = "FaceAssetDiskCache";
+
+    /* Bump when the layout of the cached data or the way assets are prepared changes. */
+    private static final int FORMAT_VERSION = 3;
+    private static final int MAX_ENTRIES = 4;
+
+    private static final String SHEET_SUFFIX = ".png";
+    private static final String INDEX_SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /* Temporary files this old are leftovers of writes interrupted by the process dying. */
+    private static final long STALE_TEMP_FILE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /*
+     * Writes and prunes the entries, one at a time. The thread stops when there is nothing to
+     * write.
+     */
+    private static final ThreadPoolExecutor sWriter = new ThreadPoolExecutor(1, 1,
+            5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sWriter.allowCoreThreadTimeOut(true);
+    }
+
+    private static final String KEY_BACKGROUND = "background";
+    private static final String KEY_GRAY_BACKGROUND = "grayBackground";
+    private static final String KEY_MAIN_TICK = "mainTick";
+    private static final String KEY_GRAY_MAIN_TICK = "grayMainTick";
+    private static final String KEY_HOUR_HAND = "hourHand";
+    private static final String KEY_GRAY_HOUR_HAND = "grayHourHand";
+    private static final String KEY_MINUTE_HAND = "minuteHand";
+    private static final String KEY_GRAY_MINUTE_HAND = "grayMinuteHand";
+    private static final String KEY_SECOND_HAND = "secondHand";
+
+    private final File mDirectory;
+    private final LogoDownloadService mLogoService;
+    private final BitmapPool mBitmapPool;
+
+    FaceAssetDiskCache(File cacheDirectory, LogoDownloadService logoService,
+                       BitmapPool bitmapPool) {
+        mDirectory = new File(cacheDirectory, "face_assets");
+        mLogoService = logoService;
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Returns the key the assets for the spec are cached under. It depends on the logo file, so
+     * it has to be taken before the logo is decoded: a logo downloaded while the assets are being
+     * prepared must not end up under a key saying the assets have it.
+     */
+    String getKey(FaceAssetBuilder.Spec spec) {
+        String logoStamp = "nologo";
+        if (mLogoService.logoExists(spec.siteCode)) {
+            File logo = mLogoService.getIconFile(spec.siteCode);
+            logoStamp = logo.lastModified() + "-" + logo.length();
+        }
+
+        return getVersionPrefix()
+                + (spec.designPreference ? "swag" : "simple") + "_"
+                + spec.siteCode + "_"
+                + spec.screenWidth + "x" + spec.screenHeight + "_"
+                + (spec.precomputesGrayAssets() ? "gray" : "nogray") + "_"
+                + logoStamp;
+    }
+
+    /**
+     * Returns the assets cached under the key, or null on a miss. Sprite atlases are not cached,
+     * the returned set never has them.
+     */
+    FaceAssets load(String key, FaceAssetBuilder.Spec spec) {
+        File sheetFile = new File(mDirectory, key + SHEET_SUFFIX);
+        File indexFile = new File(mDirectory, key + INDEX_SUFFIX);
+
+        // The index is written last, so it only exists for complete entries.
+        if (!indexFile.exists() || !sheetFile.exists()) {
+            return null;
+        }
+
+        Bitmap sheet = null;
+        try {
+            JSONObject index = new JSONObject(readFile(indexFile));
+
+            sheet = mBitmapPool.decodeFile(sheetFile.getAbsolutePath());
+            if (sheet == null) {
+                return null;
+            }
+
+            FaceAssets assets = new FaceAssets(spec);
+            Canvas canvas = new Canvas();
+            assets.background = readBitmap(sheet, canvas, index, KEY_BACKGROUND);
+            assets.grayBackground = readBitmap(sheet, canvas, index, KEY_GRAY_BACKGROUND);
+            assets.mainTick = readHand(sheet, canvas, index, KEY_MAIN_TICK);
+            assets.grayMainTick = readHand(sheet, canvas, index, KEY_GRAY_MAIN_TICK);
+            assets.hourHand = readHand(sheet, canvas, index, KEY_HOUR_HAND);
+            assets.grayHourHand = readHand(sheet, canvas, index, KEY_GRAY_HOUR_HAND);
+            assets.minuteHand = readHand(sheet, canvas, index, KEY_MINUTE_HAND);
+            assets.grayMinuteHand = readHand(sheet, canvas, index, KEY_GRAY_MINUTE_HAND);
+            assets.secondHand = readHand(sheet, canvas, index, KEY_SECOND_HAND);
+
+            // Keep recently used entries from being pruned.
+            indexFile.setLastModified(System.currentTimeMillis());
+
+            return assets;
+        } catch (IOException | JSONException e) {
+            Log.i(TAG, "Reading cached assets failed", e);
+            indexFile.delete();
+            sheetFile.delete();
+            return null;
+        } finally {
+            mBitmapPool.put(sheet);
+        }
+    }
+
+    /**
+     * Copies the bitmaps of the set into a sheet and queues writing it to disk under the key, as
+     * returned by {@link #getKey} before the set was prepared. Copying is quick, compressing the
+     * sheet is not, so it is written in the background. The write owns the sheet, the set itself
+     * may be trimmed or recycled in the meantime. Failures are logged and otherwise ignored, the
+     * cache is only an optimization.
+     */
+    void store(String key, FaceAssets assets) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.i(TAG, "Couldn't create " + mDirectory);
+            return;
+        }
+
+        final File sheetFile = new File(mDirectory, key + SHEET_SUFFIX);
+        final File indexFile = new File(mDirectory, key + INDEX_SUFFIX);
+
+        Bitmap[] bitmaps = {
+                assets.background,
+                assets.grayBackground,
+                bitmapOf(assets.mainTick),
+                bitmapOf(assets.grayMainTick),
+                bitmapOf(assets.hourHand),
+                bitmapOf(assets.grayHourHand),
+                bitmapOf(assets.minuteHand),
+                bitmapOf(assets.grayMinuteHand),
+                bitmapOf(assets.secondHand)
+        };
+
+        // Lay the bitmaps out on a single row.
+        Rect[] rects = new Rect[bitmaps.length];
+        int width = 0;
+        int height = 1;
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] != null) {
+                rects[i] = new Rect(width, 0, width + bitmaps[i].getWidth(), bitmaps[i].getHeight());
+                width += bitmaps[i].getWidth();
+                height = Math.max(height, bitmaps[i].getHeight());
+            }
+        }
+
+        final Bitmap sheet = mBitmapPool.get(Math.max(1, width), height, Bitmap.Config.ARGB_8888);
+        final JSONObject index = new JSONObject();
+        try {
+            Canvas canvas = new Canvas(sheet);
+            for (int i = 0; i < bitmaps.length; i++) {
+                if (bitmaps[i] != null) {
+                    canvas.drawBitmap(bitmaps[i], rects[i].left, rects[i].top, null);
+                }
+            }
+
+            putBitmap(index, KEY_BACKGROUND, rects[0]);
+            putBitmap(index, KEY_GRAY_BACKGROUND, rects[1]);
+            putHand(index, KEY_MAIN_TICK, rects[2], assets.mainTick);
+            putHand(index, KEY_GRAY_MAIN_TICK, rects[3], assets.grayMainTick);
+            putHand(index, KEY_HOUR_HAND, rects[4], assets.hourHand);
+            putHand(index, KEY_GRAY_HOUR_HAND, rects[5], assets.grayHourHand);
+            putHand(index, KEY_MINUTE_HAND, rects[6], assets.minuteHand);
+            putHand(index, KEY_GRAY_MINUTE_HAND, rects[7], assets.grayMinuteHand);
+            putHand(index, KEY_SECOND_HAND, rects[8], assets.secondHand);
+        } catch (JSONException e) {
+            Log.i(TAG, "Indexing cached assets failed", e);
+            mBitmapPool.put(sheet);
+            return;
+        }
+
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(sheet, index, sheetFile, indexFile);
+            }
+        });
+    }
+
+    /**
+     * Writes an entry to temporary files and renames them into place, the sheet first and the
+     * index last. Only runs on the writer thread.
+     */
+    private void write(Bitmap sheet, JSONObject index, File sheetFile, File indexFile) {
+        long startTime = System.currentTimeMillis();
+        File sheetTemp = new File(sheetFile.getPath() + TEMP_SUFFIX);
+        File indexTemp = new File(indexFile.getPath() + TEMP_SUFFIX);
+        try {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(sheetTemp));
+            try {
+                sheet.compress(Bitmap.CompressFormat.PNG, 100, output);
+            } finally {
+                output.close();
+            }
+
+            output = new BufferedOutputStream(new FileOutputStream(indexTemp));
+            try {
+                output.write(index.toString().getBytes("UTF-8"));
+            } finally {
+                output.close();
+            }
+
+            // An existing index must not describe the new sheet while it is being replaced.
+            indexFile.delete();
+            rename(sheetTemp, sheetFile);
+            rename(indexTemp, indexFile);
+            Log.d(TAG, "Wrote " + sheetFile.getName() + " in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (IOException e) {
+            Log.i(TAG, "Writing cached assets failed", e);
+            indexFile.delete();
+            sheetTemp.delete();
+            indexTemp.delete();
+        } finally {
+            mBitmapPool.put(sheet);
+        }
+
+        prune();
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Can't rename " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Removes entries of older app or format versions, all but the most recently used
+     * {@link #MAX_ENTRIES} entries, and stale temporary files. Only runs on the writer thread, so
+     * no write is in progress.
+     */
+    private void prune() {
+        File[] indexFiles = mDirectory.listFiles();
+        if (indexFiles == null) {
+            return;
+        }
+
+        String currentPrefix = getVersionPrefix();
+        Arrays.sort(indexFiles, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o2.lastModified(), o1.lastModified());
+            }
+        });
+
+        int kept = 0;
+        for (File file : indexFiles) {
+            String name = file.getName();
+            if (!name.endsWith(INDEX_SUFFIX)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - INDEX_SUFFIX.length());
+            if (!key.startsWith(currentPrefix) || ++kept > MAX_ENTRIES) {
+                file.delete();
+                new File(mDirectory, key + SHEET_SUFFIX).delete();
+            }
+        }
+
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_MS;
+        for (File file : indexFiles) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                if (file.lastModified() < staleBefore) {
+                    file.delete();
+                }
+            } else if (name.endsWith(SHEET_SUFFIX) && !name.startsWith(currentPrefix)) {
+                // Sheets of older versions whose index is gone already.
+                file.delete();
+            }
+        }
+    }
+
+    private String getVersionPrefix() {
+        return "v" + FORMAT_VERSION + "_" + BuildConfig.VERSION_CODE + "_";
+    }
+
+    private static Bitmap bitmapOf(HandBitmap hand) {
+        return hand == null ? null : hand.getBitmap();
+    }
+
+    private static void putBitmap(JSONObject index, String key, Rect rect) throws JSONException {
+        if (rect != null) {
+            index.put(key, new JSONArray()
+                    .put(rect.left).put(rect.top).put(rect.width()).put(rect.height()));
+        }
+    }
+
+    private static void putHand(JSONObject index, String key, Rect rect, HandBitmap hand)
+            throws JSONException {
+        if (rect != null) {
+            index.put(key, new JSONArray()
+                    .put(rect.left).put(rect.top).put(rect.width()).put(rect.height())
+                    .put(hand.getLeft()).put(hand.getTop()));
+        }
+    }
+
+    /**
+     * Copies a bitmap out of the sheet into a pooled bitmap.
+     */
+    private Bitmap readBitmap(Bitmap sheet, Canvas canvas, JSONObject index, String key)
+            throws JSONException {
+        JSONArray entry = index.optJSONArray(key);
+        if (entry == null) {
+            return null;
+        }
+
+        int x = entry.getInt(0);
+        int y = entry.getInt(1);
+        int width = entry.getInt(2);
+        int height = entry.getInt(3);
+
+        Bitmap bitmap = mBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        canvas.setBitmap(bitmap);
+        canvas.drawBitmap(sheet, new Rect(x, y, x + width, y + height),
+                new Rect(0, 0, width, height), null);
+        canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    private HandBitmap readHand(Bitmap sheet, Canvas canvas, JSONObject index, String key)
+            throws JSONException {
+        Bitmap bitmap = readBitmap(sheet, canvas, index, key);
+        if (bitmap == null) {
+            return null;
+        }
+        JSONArray entry = index.getJSONArray(key);
+        return new HandBitmap(bitmap, (float) entry.getDouble(4), (float) entry.getDouble(5));
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            int count;
+            while (offset < data.length
+                    && (count = input.read(data, offset, data.length - offset)) != -1) {
+                offset += count;
+            }
+            return new String(data, 0, offset, "UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+}
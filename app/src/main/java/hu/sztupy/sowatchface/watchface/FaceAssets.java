@@ -0,0 +1,220 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.graphics.Bitmap;
+
+/**
+ * One complete set of bitmaps needed to draw the watch face for a given design, site and screen
+ * size, as produced by {@link FaceAssetBuilder}.
+ * <p>
+ * A set is built off the UI thread and handed over to the engine as a whole, so the engine never
+ * draws a mix of old and new assets. Once handed over it is only touched from the engine's thread.
+ */
+class FaceAssets {
+    final FaceAssetBuilder.Spec spec;
+
+    Bitmap background;
+    Bitmap grayBackground;
+
+    /* Hands and the UTC notch, cropped to their visible pixels. */
+    HandBitmap mainTick;
+    HandBitmap grayMainTick;
+    HandBitmap hourHand;
+    HandBitmap grayHourHand;
+    HandBitmap minuteHand;
+    HandBitmap grayMinuteHand;
+    HandBitmap secondHand;
+
+    /*
+     * Thresholded ALPHA_8 silhouettes of the hands and the UTC notch, drawn in ambient mode on
+     * low-bit screens. Null unless the screen has low-bit ambient mode.
+     */
+    HandBitmap lowBitMainTick;
+    HandBitmap lowBitHourHand;
+    HandBitmap lowBitMinuteHand;
+
+    /*
+     * Pre-rotated sprites for hands that only stop at discrete positions: the second hand
+     * in interactive mode and the gray hour and minute hands in ambient mode. Null if the
+     * sprite atlas mode is turned off or the atlas didn't fit the memory limit.
+     */
+    HandSpriteAtlas secondHandAtlas;
+    HandSpriteAtlas grayMinuteHandAtlas;
+    HandSpriteAtlas grayHourHandAtlas;
+
+    FaceAssets(FaceAssetBuilder.Spec spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Moves the gray copies and their sprite atlases built by
+     * {@link FaceAssetBuilder#buildGrayAssets(FaceAssets)} into this set.
+     */
+    void takeGrayAssets(FaceAssets gray) {
+        grayBackground = gray.grayBackground;
+        grayMainTick = gray.grayMainTick;
+        grayHourHand = gray.grayHourHand;
+        grayMinuteHand = gray.grayMinuteHand;
+        grayMinuteHandAtlas = gray.grayMinuteHandAtlas;
+        grayHourHandAtlas = gray.grayHourHandAtlas;
+    }
+
+    /**
+     * Releases the gray copies and their sprite atlases.
+     *
+     * @return the number of bytes freed
+     */
+    long trimGrayAssets() {
+        long bytes = getGrayByteCount();
+
+        recycle(grayBackground);
+        recycle(grayMainTick);
+        recycle(grayHourHand);
+        recycle(grayMinuteHand);
+        if (grayMinuteHandAtlas != null) {
+            grayMinuteHandAtlas.recycle();
+        }
+        if (grayHourHandAtlas != null) {
+            grayHourHandAtlas.recycle();
+        }
+
+        grayBackground = null;
+        grayMainTick = null;
+        grayHourHand = null;
+        grayMinuteHand = null;
+        grayMinuteHandAtlas = null;
+        grayHourHandAtlas = null;
+        return bytes;
+    }
+
+    /**
+     * Releases the colored background, the largest image of the set.
+     *
+     * @return the number of bytes freed
+     */
+    long trimBackground() {
+        long bytes = getByteCount(background);
+        recycle(background);
+        background = null;
+        return bytes;
+    }
+
+    /**
+     * Returns whether the gray copies still have to be built.
+     */
+    boolean isMissingGrayAssets() {
+        return spec.needsGrayAssets() && grayBackground == null;
+    }
+
+    /**
+     * Returns the memory used by all bitmaps of the set, in bytes.
+     */
+    long getByteCount() {
+        long bytes = getByteCount(background) + getByteCount(mainTick) + getByteCount(hourHand)
+                + getByteCount(minuteHand) + getByteCount(secondHand)
+                + getByteCount(lowBitMainTick) + getByteCount(lowBitHourHand)
+                + getByteCount(lowBitMinuteHand);
+        if (secondHandAtlas != null) {
+            bytes += secondHandAtlas.getByteCount();
+        }
+        return bytes + getGrayByteCount();
+    }
+
+    /**
+     * Returns the memory used by the gray copies and their sprite atlases, in bytes.
+     */
+    long getGrayByteCount() {
+        long bytes = getByteCount(grayBackground) + getByteCount(grayMainTick)
+                + getByteCount(grayHourHand) + getByteCount(grayMinuteHand);
+        if (grayMinuteHandAtlas != null) {
+            bytes += grayMinuteHandAtlas.getByteCount();
+        }
+        if (grayHourHandAtlas != null) {
+            bytes += grayHourHandAtlas.getByteCount();
+        }
+        return bytes;
+    }
+
+    private static long getByteCount(HandBitmap hand) {
+        return hand == null ? 0 : getByteCount(hand.getBitmap());
+    }
+
+    private static long getByteCount(Bitmap bitmap) {
+        return bitmap == null ? 0 : bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * Gives the bitmaps of the set to the pool, for the next set to reuse. The set must not be
+     * drawn afterwards.
+     */
+    void releaseTo(BitmapPool pool) {
+        pool.put(background);
+        pool.put(grayBackground);
+        releaseTo(pool, mainTick);
+        releaseTo(pool, grayMainTick);
+        releaseTo(pool, hourHand);
+        releaseTo(pool, grayHourHand);
+        releaseTo(pool, minuteHand);
+        releaseTo(pool, grayMinuteHand);
+        releaseTo(pool, secondHand);
+        releaseTo(pool, lowBitMainTick);
+        releaseTo(pool, lowBitHourHand);
+        releaseTo(pool, lowBitMinuteHand);
+
+        // Atlases are sized for their hand, they are rarely worth keeping.
+        if (secondHandAtlas != null) {
+            secondHandAtlas.recycle();
+        }
+        if (grayMinuteHandAtlas != null) {
+            grayMinuteHandAtlas.recycle();
+        }
+        if (grayHourHandAtlas != null) {
+            grayHourHandAtlas.recycle();
+        }
+    }
+
+    private static void releaseTo(BitmapPool pool, HandBitmap hand) {
+        if (hand != null) {
+            pool.put(hand.getBitmap());
+        }
+    }
+
+    /**
+     * Releases the pixel memory of every bitmap in the set. The set must not be drawn afterwards.
+     */
+    void recycle() {
+        recycle(background);
+        recycle(grayBackground);
+        recycle(mainTick);
+        recycle(grayMainTick);
+        recycle(hourHand);
+        recycle(grayHourHand);
+        recycle(minuteHand);
+        recycle(grayMinuteHand);
+        recycle(secondHand);
+        recycle(lowBitMainTick);
+        recycle(lowBitHourHand);
+        recycle(lowBitMinuteHand);
+
+        if (secondHandAtlas != null) {
+            secondHandAtlas.recycle();
+        }
+        if (grayMinuteHandAtlas != null) {
+            grayMinuteHandAtlas.recycle();
+        }
+        if (grayHourHandAtlas != null) {
+            grayHourHandAtlas.recycle();
+        }
+    }
+
+    private static void recycle(HandBitmap hand) {
+        if (hand != null) {
+            recycle(hand.getBitmap());
+        }
+    }
+
+    private static void recycle(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+}
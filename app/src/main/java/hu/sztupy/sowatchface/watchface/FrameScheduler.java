@@ -0,0 +1,104 @@
+package hu.sztupy.sowatchface.watchface;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the watch face is redrawn in interactive mode. Subclasses pick the update interval,
+ * this class lines the wakeups up with it and counts how many wakeups were saved compared to
+ * updating once a second.
+ * <p>
+ * Every delay is calculated from the wall clock, to the next multiple of the interval, so late
+ * handler deliveries never add up: each tick lands on a second (or minute) boundary again, and a
+ * wakeup that arrives a little early just waits out the rest of the interval.
+ */
+abstract class FrameScheduler {
+    static final long BASE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private long mLastWakeupMillis = -1;
+    private long mCurrentIntervalMillis = BASE_INTERVAL_MS;
+    private long mWakeupCount;
+    private long mSavedWakeupCount;
+
+    /**
+     * Returns the interval the watch face should currently be updated with. Must be a multiple
+     * of {@link #BASE_INTERVAL_MS}.
+     */
+    abstract long getUpdateInterval(long currentTimeMillis);
+
+    /**
+     * Called when the watch face becomes visible; start listening to whatever the scheduler
+     * needs.
+     */
+    void start() {
+    }
+
+    /**
+     * Called when the watch face is hidden.
+     */
+    void stop() {
+    }
+
+    /**
+     * Called when the user interacts with the watch, e.g. taps it or turns the wrist to wake it.
+     */
+    void onUserActivity(long currentTimeMillis) {
+    }
+
+    /**
+     * Records an update timer wakeup.
+     *
+     * @return the delay in milliseconds until the next wakeup
+     */
+    final long onWakeup(long currentTimeMillis) {
+        mWakeupCount++;
+        if (mLastWakeupMillis != -1) {
+            // Updating once a second would have woken up on every second boundary in between.
+            long baseWakeups = currentTimeMillis / BASE_INTERVAL_MS
+                    - mLastWakeupMillis / BASE_INTERVAL_MS;
+            if (baseWakeups > 1) {
+                mSavedWakeupCount += baseWakeups - 1;
+            }
+        }
+        mLastWakeupMillis = currentTimeMillis;
+
+        mCurrentIntervalMillis = getUpdateInterval(currentTimeMillis);
+        return mCurrentIntervalMillis - (currentTimeMillis % mCurrentIntervalMillis);
+    }
+
+    /**
+     * Called when the update timer is stopped, so the time until it is restarted isn't counted
+     * as saved wakeups.
+     */
+    final void onTimerStopped() {
+        mLastWakeupMillis = -1;
+    }
+
+    /**
+     * Returns whether the second hand is drawn. It is only accurate when updating once a second,
+     * at any slower rate it would show the wrong second most of the time.
+     */
+    boolean isSecondHandVisible() {
+        return mCurrentIntervalMillis <= BASE_INTERVAL_MS;
+    }
+
+    /**
+     * Returns whether the watch face may currently be updated once a second. Unlike
+     * {@link #isSecondHandVisible()} this doesn't wait for the next wakeup, so it also works
+     * while something else, like the sweeping second hand, drives the frames.
+     */
+    boolean allowsBaseInterval(long currentTimeMillis) {
+        return getUpdateInterval(currentTimeMillis) <= BASE_INTERVAL_MS;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print(getClass().getSimpleName());
+        writer.print(": interval=");
+        writer.print(mCurrentIntervalMillis);
+        writer.print("ms wakeups=");
+        writer.print(mWakeupCount);
+        writer.print(" saved=");
+        writer.println(mSavedWakeupCount);
+    }
+}
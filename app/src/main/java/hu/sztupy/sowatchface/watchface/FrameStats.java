@@ -0,0 +1,112 @@
+package hu.sztupy.sowatchface.watchface;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing statistics of the frames drawn in one rendering configuration (ambient or interactive
+ * mode, and watch face design).
+ * <p>
+ * Each drawing phase keeps its most recent durations in a fixed size ring buffer, so recording
+ * a sample never allocates. Percentiles are only calculated when the statistics are dumped.
+ */
+class FrameStats {
+    static final int PHASE_BACKGROUND = 0;
+    static final int PHASE_NOTIFICATION = 1;
+    static final int PHASE_COMPLICATIONS = 2;
+    static final int PHASE_UTC_NOTCH = 3;
+    static final int PHASE_HANDS = 4;
+    /* Copying the cached static layer; the phases above it are only drawn when recomposing it. */
+    static final int PHASE_LAYER_COPY = 5;
+    static final int PHASE_FRAME = 6;
+    private static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = {
+            "background", "notification", "complications", "utc notch", "hands", "layer copy",
+            "frame"
+    };
+
+    /* Number of most recent samples kept for each phase. */
+    private static final int CAPACITY = 512;
+
+    private final String mName;
+    private final long mDeadlineNanos;
+
+    private final long[][] mSamples = new long[PHASE_COUNT][CAPACITY];
+    private final int[] mSampleCount = new int[PHASE_COUNT];
+    private final int[] mNextSample = new int[PHASE_COUNT];
+
+    private long mFrameCount;
+    private long mMissedDeadlineCount;
+
+    FrameStats(String name, long deadlineMillis) {
+        mName = name;
+        mDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    void record(int phase, long durationNanos) {
+        mSamples[phase][mNextSample[phase]] = durationNanos;
+        mNextSample[phase] = (mNextSample[phase] + 1) % CAPACITY;
+        if (mSampleCount[phase] < CAPACITY) {
+            mSampleCount[phase]++;
+        }
+    }
+
+    /**
+     * Records the duration of a complete frame, and whether it missed the deadline.
+     */
+    void recordFrame(long durationNanos) {
+        record(PHASE_FRAME, durationNanos);
+        mFrameCount++;
+        if (durationNanos > mDeadlineNanos) {
+            mMissedDeadlineCount++;
+        }
+    }
+
+    /**
+     * Returns the given percentile of a phase's recent durations in nanoseconds, or -1 if
+     * there are no samples. Allocates, so don't call it while drawing.
+     */
+    long getPercentile(int phase, int percentile) {
+        int count = mSampleCount[phase];
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(mSamples[phase], count);
+        Arrays.sort(sorted);
+        int index = Math.min(count - 1, (int) Math.ceil(count * percentile / 100.0) - 1);
+        return sorted[Math.max(0, index)];
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print(mName);
+        writer.print(": frames=");
+        writer.print(mFrameCount);
+        writer.print(" missedDeadline=");
+        writer.print(mMissedDeadlineCount);
+        writer.print(" (deadline ");
+        writer.print(TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos));
+        writer.println("ms)");
+
+        if (mFrameCount == 0) {
+            return;
+        }
+
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            if (mSampleCount[phase] == 0) {
+                continue;
+            }
+            writer.print(prefix);
+            writer.println(String.format(Locale.US,
+                    "  %-13s n=%-4d p50=%8.3fms p95=%8.3fms p99=%8.3fms",
+                    PHASE_NAMES[phase],
+                    mSampleCount[phase],
+                    getPercentile(phase, 50) / 1e6,
+                    getPercentile(phase, 95) / 1e6,
+                    getPercentile(phase, 99) / 1e6));
+        }
+    }
+}
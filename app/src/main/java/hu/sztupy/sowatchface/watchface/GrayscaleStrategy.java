@@ -0,0 +1,37 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.app.ActivityManager;
+
+/**
+ * How the grayscale images shown in ambient mode are produced. Each step down trades a little
+ * drawing time in ambient mode for four fewer screen sized bitmaps on the heap.
+ */
+enum GrayscaleStrategy {
+    /* Gray copies are built together with the colored images, and kept for as long as they are. */
+    PRECOMPUTED,
+    /*
+     * Gray copies are built in the background the first time ambient mode is entered. Until
+     * they are ready, ambient frames are drawn like DRAW_TIME_FILTER.
+     */
+    LAZY,
+    /* No copies are kept, the colored images are desaturated with a color filter while drawing. */
+    DRAW_TIME_FILTER;
+
+    /* Memory classes, in megabytes, from which the copies are worth keeping. */
+    private static final int PRECOMPUTED_MEMORY_CLASS = 256;
+    private static final int LAZY_MEMORY_CLASS = 128;
+
+    static GrayscaleStrategy forDevice(ActivityManager activityManager) {
+        if (activityManager.isLowRamDevice()) {
+            return DRAW_TIME_FILTER;
+        }
+
+        int memoryClass = activityManager.getMemoryClass();
+        if (memoryClass >= PRECOMPUTED_MEMORY_CLASS) {
+            return PRECOMPUTED;
+        } else if (memoryClass >= LAZY_MEMORY_CLASS) {
+            return LAZY;
+        }
+        return DRAW_TIME_FILTER;
+    }
+}
@@ -0,0 +1,116 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A watch hand (or any other rotating overlay) cropped to the opaque bounds of its full-screen
+ * source image.
+ * <p>
+ * The hand assets are drawn on a transparent layer the size of the whole watch face, with the
+ * pivot at the center. Blending those layers every frame is wasteful, so only the visible pixels
+ * are kept together with their offset inside the original layer. Drawing then rotates that small
+ * bitmap around the screen center with a single matrix.
+ */
+class HandBitmap {
+    /* Transparent border kept around the crop so bitmap filtering can still fade the edges. */
+    private static final int CROP_PADDING = 1;
+
+    private final Bitmap mBitmap;
+    private final float mLeft;
+    private final float mTop;
+
+    // Reused between frames so drawing does not allocate.
+    private final Matrix mMatrix = new Matrix();
+
+    HandBitmap(Bitmap bitmap, float left, float top) {
+        mBitmap = bitmap;
+        mLeft = left;
+        mTop = top;
+    }
+
+    /**
+     * Crops the full-screen source layer to its opaque bounds and scales the crop by the given
+     * factor, into a bitmap taken from the pool. The source bitmap is returned to the pool.
+     */
+    static HandBitmap create(Bitmap source, float scale, BitmapPool pool) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        int[] row = new int[width];
+        int minX = width;
+        int minY = height;
+        int maxX = -1;
+        int maxY = -1;
+
+        for (int y = 0; y < height; y++) {
+            source.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                if ((row[x] >>> 24) != 0) {
+                    if (x < minX) minX = x;
+                    if (x > maxX) maxX = x;
+                    if (y < minY) minY = y;
+                    maxY = y;
+                }
+            }
+        }
+
+        if (maxX < 0) {
+            // Fully transparent layer, keep a single pixel so callers don't need null checks.
+            minX = minY = maxX = maxY = 0;
+        }
+
+        minX = Math.max(0, minX - CROP_PADDING);
+        minY = Math.max(0, minY - CROP_PADDING);
+        maxX = Math.min(width - 1, maxX + CROP_PADDING);
+        maxY = Math.min(height - 1, maxY + CROP_PADDING);
+
+        int cropWidth = maxX - minX + 1;
+        int cropHeight = maxY - minY + 1;
+
+        // Crop and scale in a single filtered draw.
+        Bitmap scaled = pool.get(
+                Math.max(1, Math.round(cropWidth * scale)),
+                Math.max(1, Math.round(cropHeight * scale)),
+                Bitmap.Config.ARGB_8888);
+        new Canvas(scaled).drawBitmap(source,
+                new Rect(minX, minY, maxX + 1, maxY + 1),
+                new Rect(0, 0, scaled.getWidth(), scaled.getHeight()),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(source);
+
+        return new HandBitmap(scaled, minX * scale, minY * scale);
+    }
+
+    /**
+     * Returns a hand with the same placement as this one but drawn using another bitmap, e.g.
+     * the grayscale version used in ambient mode.
+     */
+    HandBitmap withBitmap(Bitmap bitmap) {
+        return new HandBitmap(bitmap, mLeft, mTop);
+    }
+
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    float getLeft() {
+        return mLeft;
+    }
+
+    float getTop() {
+        return mTop;
+    }
+
+    /**
+     * Draws the hand rotated by the given degrees around the pivot point of the watch face.
+     */
+    void draw(Canvas canvas, float degrees, float pivotX, float pivotY, Paint paint) {
+        mMatrix.setTranslate(mLeft, mTop);
+        mMatrix.postRotate(degrees, pivotX, pivotY);
+        canvas.drawBitmap(mBitmap, mMatrix, paint);
+    }
+}
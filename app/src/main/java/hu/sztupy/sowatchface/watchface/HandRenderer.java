@@ -0,0 +1,33 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.graphics.Canvas;
+
+/**
+ * Draws the hands and the UTC notch rotated around the center of the watch face. Angles are in
+ * degrees clockwise from 12 o'clock.
+ * <p>
+ * {@link BitmapHandRenderer} rotates the hand images, {@link VectorHandRenderer} fills paths
+ * approximating them. The engine draws through whichever the user picked; the
+ * HandRendererBenchmark instrumented test compares the two on the device.
+ */
+interface HandRenderer {
+    /**
+     * Switches between interactive mode and the ambient modes of the screen, and sets the
+     * drawing quality picked by the {@link RenderGovernor}.
+     */
+    void setStyle(boolean ambient, boolean lowBitAmbient, boolean burnInProtection,
+                  boolean antiAlias, boolean filterBitmap);
+
+    void drawUtcNotch(Canvas canvas, float degrees);
+
+    void drawHourHand(Canvas canvas, float degrees);
+
+    void drawMinuteHand(Canvas canvas, float degrees);
+
+    void drawSecondHand(Canvas canvas, float degrees);
+
+    /**
+     * Returns the memory held in bitmaps by the renderer.
+     */
+    long getByteCount();
+}
@@ -0,0 +1,207 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+/**
+ * Pre-rotated sprites of a {@link HandBitmap} for hands that only ever stop at a fixed number of
+ * positions (the second hand, or the hour and minute hands in ambient mode).
+ * <p>
+ * Every position of the first quarter turn is rendered once with filtering, trimmed to its
+ * visible pixels and packed into a single atlas bitmap. The other three quarters reuse the same
+ * sprites rotated by a multiple of 90 degrees, which maps pixels exactly, so drawing a hand
+ * becomes an unfiltered blit of a small region of the atlas.
+ */
+class HandSpriteAtlas {
+    private static final String TAG = "HandSpriteAtlas";
+
+    private final Bitmap mAtlas;
+    private final int mSteps;
+    private final int mStepsPerQuarter;
+
+    /* Location of each sprite in the atlas and on the screen, indexed by quarter-turn step. */
+    private final Rect[] mSourceRects;
+    private final Rect[] mDestinationRects;
+
+    private HandSpriteAtlas(Bitmap atlas, int steps, Rect[] sourceRects, Rect[] destinationRects) {
+        mAtlas = atlas;
+        mSteps = steps;
+        mStepsPerQuarter = steps / 4;
+        mSourceRects = sourceRects;
+        mDestinationRects = destinationRects;
+    }
+
+    /**
+     * Renders the given hand at {@code steps} evenly spaced angles around the pivot. Returns null
+     * if the atlas would need more than {@code maxBytes} of memory, in which case the hand should
+     * keep being rotated live.
+     *
+     * @param steps number of positions for a full turn, must be a multiple of 4
+     */
+    static HandSpriteAtlas create(HandBitmap hand, int steps, float pivotX, float pivotY,
+                                  long maxBytes) {
+        if (steps <= 0 || steps % 4 != 0) {
+            throw new IllegalArgumentException("Steps must be a positive multiple of 4: " + steps);
+        }
+
+        int stepsPerQuarter = steps / 4;
+        Bitmap handBitmap = hand.getBitmap();
+
+        // Scratch surface big enough for the hand at any angle.
+        int diagonal = (int) Math.ceil(Math.hypot(handBitmap.getWidth(), handBitmap.getHeight())) + 2;
+        Bitmap scratch = Bitmap.createBitmap(diagonal, diagonal, Bitmap.Config.ARGB_8888);
+        Canvas scratchCanvas = new Canvas(scratch);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+        int[] pixels = new int[diagonal * diagonal];
+
+        Rect[] destinationRects = new Rect[stepsPerQuarter];
+        int[] originX = new int[stepsPerQuarter];
+        int[] originY = new int[stepsPerQuarter];
+        long totalArea = 0;
+        int maxWidth = 0;
+
+        // First pass: measure the visible bounds of every rotated sprite.
+        for (int i = 0; i < stepsPerQuarter; i++) {
+            float degrees = i * 360f / steps;
+            RectF bounds = getRotatedBounds(hand, degrees, pivotX, pivotY);
+            originX[i] = (int) Math.floor(bounds.left);
+            originY[i] = (int) Math.floor(bounds.top);
+
+            scratch.eraseColor(0);
+            renderSprite(scratchCanvas, hand, degrees, pivotX, pivotY,
+                    originX[i], originY[i], paint);
+            scratch.getPixels(pixels, 0, diagonal, 0, 0, diagonal, diagonal);
+
+            Rect visible = findVisibleBounds(pixels, diagonal);
+            visible.offset(originX[i], originY[i]);
+            destinationRects[i] = visible;
+
+            totalArea += (long) visible.width() * visible.height();
+            maxWidth = Math.max(maxWidth, visible.width());
+        }
+        scratch.recycle();
+
+        // Simple shelf packing, aiming for a roughly square atlas.
+        int atlasWidth = Math.max(maxWidth, (int) Math.ceil(Math.sqrt(totalArea * 1.1)));
+        Rect[] sourceRects = new Rect[stepsPerQuarter];
+        int x = 0;
+        int y = 0;
+        int shelfHeight = 0;
+        for (int i = 0; i < stepsPerQuarter; i++) {
+            int width = destinationRects[i].width();
+            int height = destinationRects[i].height();
+            if (x + width > atlasWidth) {
+                x = 0;
+                y += shelfHeight;
+                shelfHeight = 0;
+            }
+            sourceRects[i] = new Rect(x, y, x + width, y + height);
+            x += width;
+            shelfHeight = Math.max(shelfHeight, height);
+        }
+        int atlasHeight = Math.max(1, y + shelfHeight);
+
+        long byteCount = (long) atlasWidth * atlasHeight * 4;
+        if (byteCount > maxBytes) {
+            Log.d(TAG, "Atlas of " + steps + " steps needs " + byteCount
+                    + " bytes, over the " + maxBytes + " byte limit");
+            return null;
+        }
+
+        // Second pass: render each sprite straight into its slot of the atlas.
+        Bitmap atlas = Bitmap.createBitmap(atlasWidth, atlasHeight, Bitmap.Config.ARGB_8888);
+        Canvas atlasCanvas = new Canvas(atlas);
+        for (int i = 0; i < stepsPerQuarter; i++) {
+            Rect source = sourceRects[i];
+            Rect destination = destinationRects[i];
+
+            atlasCanvas.save();
+            atlasCanvas.clipRect(source);
+            atlasCanvas.translate(source.left - destination.left, source.top - destination.top);
+            atlasCanvas.rotate(i * 360f / steps, pivotX, pivotY);
+            atlasCanvas.translate(hand.getLeft(), hand.getTop());
+            atlasCanvas.drawBitmap(handBitmap, 0, 0, paint);
+            atlasCanvas.restore();
+        }
+
+        return new HandSpriteAtlas(atlas, steps, sourceRects, destinationRects);
+    }
+
+    private static RectF getRotatedBounds(HandBitmap hand, float degrees,
+                                          float pivotX, float pivotY) {
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(hand.getLeft(), hand.getTop());
+        matrix.postRotate(degrees, pivotX, pivotY);
+        RectF bounds = new RectF(0, 0, hand.getBitmap().getWidth(), hand.getBitmap().getHeight());
+        matrix.mapRect(bounds);
+        return bounds;
+    }
+
+    private static void renderSprite(Canvas canvas, HandBitmap hand, float degrees,
+                                     float pivotX, float pivotY, int originX, int originY,
+                                     Paint paint) {
+        canvas.save();
+        canvas.translate(-originX, -originY);
+        canvas.rotate(degrees, pivotX, pivotY);
+        canvas.translate(hand.getLeft(), hand.getTop());
+        canvas.drawBitmap(hand.getBitmap(), 0, 0, paint);
+        canvas.restore();
+    }
+
+    private static Rect findVisibleBounds(int[] pixels, int size) {
+        int minX = size;
+        int minY = size;
+        int maxX = -1;
+        int maxY = -1;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if ((pixels[y * size + x] >>> 24) != 0) {
+                    if (x < minX) minX = x;
+                    if (x > maxX) maxX = x;
+                    if (y < minY) minY = y;
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX < 0) {
+            return new Rect(0, 0, 1, 1);
+        }
+        return new Rect(minX, minY, maxX + 1, maxY + 1);
+    }
+
+    int getSteps() {
+        return mSteps;
+    }
+
+    long getByteCount() {
+        return mAtlas.getAllocationByteCount();
+    }
+
+    void recycle() {
+        mAtlas.recycle();
+    }
+
+    /**
+     * Draws the sprite for the given position, where position 0 points to 12 o'clock and the
+     * positions advance clockwise. The paint should not use bitmap filtering.
+     */
+    void draw(Canvas canvas, int step, float pivotX, float pivotY, Paint paint) {
+        step %= mSteps;
+        int quarter = step / mStepsPerQuarter;
+        int index = step % mStepsPerQuarter;
+
+        if (quarter == 0) {
+            canvas.drawBitmap(mAtlas, mSourceRects[index], mDestinationRects[index], paint);
+        } else {
+            canvas.save();
+            canvas.rotate(quarter * 90f, pivotX, pivotY);
+            canvas.drawBitmap(mAtlas, mSourceRects[index], mDestinationRects[index], paint);
+            canvas.restore();
+        }
+    }
+}
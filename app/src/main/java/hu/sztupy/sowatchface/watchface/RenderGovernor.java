@@ -0,0 +1,125 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the duration of recent frames and lowers the rendering quality in steps when they run
+ * over the frame budget, so slow watches keep ticking smoothly instead of dropping frames.
+ * <p>
+ * The quality is lowered one tier at a time when several frames of a short window are over
+ * budget, and raised one tier at a time after a longer run of frames that finished well within
+ * it. The longer window for stepping up keeps the governor from flip-flopping between two tiers.
+ */
+class RenderGovernor {
+    private static final String TAG = "RenderGovernor";
+
+    /* Everything is drawn. */
+    static final int TIER_FULL = 0;
+    /* Rotated bitmaps are drawn without bilinear filtering. */
+    static final int TIER_NO_FILTERING = 1;
+    /* The UTC notch isn't drawn. */
+    static final int TIER_NO_UTC_NOTCH = 2;
+    /* Hands and shapes are drawn without anti-aliasing. */
+    static final int TIER_NO_ANTI_ALIAS = 3;
+    /* The second hand isn't drawn. */
+    static final int TIER_NO_SECOND_HAND = 4;
+
+    private static final String[] TIER_NAMES = {
+            "full", "no filtering", "no UTC notch", "no anti-aliasing", "no second hand"
+    };
+
+    /* Step down when this many of the last WINDOW_FRAMES frames were over budget. */
+    private static final int WINDOW_FRAMES = 8;
+    private static final int SLOW_FRAMES_TO_STEP_DOWN = 3;
+
+    /* Step up after this many consecutive frames that used less than half the budget. */
+    private static final int FAST_FRAMES_TO_STEP_UP = 30;
+
+    private final long mBudgetNanos;
+
+    private final boolean[] mSlowFrames = new boolean[WINDOW_FRAMES];
+    private int mNextFrame;
+    private int mWindowFrameCount;
+    private int mSlowFrameCount;
+    private int mFastFrameRun;
+
+    private int mTier = TIER_FULL;
+    private int mTierChangeCount;
+
+    RenderGovernor(long budgetMillis) {
+        mBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    int getTier() {
+        return mTier;
+    }
+
+    /**
+     * Records the duration of a drawn frame.
+     *
+     * @return true if the tier changed, and the engine needs to apply the new one
+     */
+    boolean recordFrame(long durationNanos) {
+        boolean slow = durationNanos > mBudgetNanos;
+
+        if (mWindowFrameCount == WINDOW_FRAMES && mSlowFrames[mNextFrame]) {
+            mSlowFrameCount--;
+        }
+        mSlowFrames[mNextFrame] = slow;
+        mNextFrame = (mNextFrame + 1) % WINDOW_FRAMES;
+        if (mWindowFrameCount < WINDOW_FRAMES) {
+            mWindowFrameCount++;
+        }
+        if (slow) {
+            mSlowFrameCount++;
+        }
+
+        if (durationNanos < mBudgetNanos / 2) {
+            mFastFrameRun++;
+        } else {
+            mFastFrameRun = 0;
+        }
+
+        if (mSlowFrameCount >= SLOW_FRAMES_TO_STEP_DOWN && mTier < TIER_NO_SECOND_HAND) {
+            setTier(mTier + 1, mSlowFrameCount + " of the last " + mWindowFrameCount
+                    + " frames took over " + TimeUnit.NANOSECONDS.toMillis(mBudgetNanos) + "ms");
+            return true;
+        }
+
+        if (mFastFrameRun >= FAST_FRAMES_TO_STEP_UP && mTier > TIER_FULL) {
+            setTier(mTier - 1, mFastFrameRun + " frames in a row took under "
+                    + TimeUnit.NANOSECONDS.toMillis(mBudgetNanos / 2) + "ms");
+            return true;
+        }
+
+        return false;
+    }
+
+    private void setTier(int tier, String reason) {
+        Log.i(TAG, "Render quality " + TIER_NAMES[mTier] + " -> " + TIER_NAMES[tier]
+                + ": " + reason);
+        mTier = tier;
+        mTierChangeCount++;
+
+        // Judge the new tier on its own frames only.
+        for (int i = 0; i < WINDOW_FRAMES; i++) {
+            mSlowFrames[i] = false;
+        }
+        mNextFrame = 0;
+        mWindowFrameCount = 0;
+        mSlowFrameCount = 0;
+        mFastFrameRun = 0;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Render quality: ");
+        writer.print(TIER_NAMES[mTier]);
+        writer.print(" (");
+        writer.print(mTierChangeCount);
+        writer.println(" changes)");
+    }
+}
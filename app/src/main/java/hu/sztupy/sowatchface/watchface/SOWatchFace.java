@@ -1,22 +1,25 @@
 package hu.sztupy.sowatchface.watchface;
 
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.support.wearable.complications.ComplicationData;
 import android.support.wearable.complications.rendering.ComplicationDrawable;
 import android.support.wearable.watchface.CanvasWatchFaceService;
@@ -26,16 +29,20 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.view.SurfaceHolder;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 import hu.sztupy.sowatchface.R;
 import hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewAdapter;
+import hu.sztupy.sowatchface.utils.LogoCache;
 import hu.sztupy.sowatchface.utils.LogoDownloadService;
 import hu.sztupy.sowatchface.utils.SiteListService;
+import hu.sztupy.sowatchface.utils.StackExchangeClients;
 
 import static hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewAdapter.JON_SKEET_ID;
 import static hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewAdapter.JON_SKEET_SE_ID;
@@ -54,17 +61,36 @@ import static hu.sztupy.sowatchface.config.AnalogComplicationConfigRecyclerViewA
  */
 public class SOWatchFace extends CanvasWatchFaceService {
     private static final String TAG = "WatchFace";
+
+    private static final long SECOND_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
     /*
-     * Updates rate in milliseconds for interactive mode. We update once a second to advance the
-     * second hand.
+     * Frames taking longer than a display refresh are counted as missed deadlines in the
+     * frame statistics, and make the render governor lower the drawing quality.
      */
-    private static final long INTERACTIVE_UPDATE_RATE_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long FRAME_DEADLINE_MS = 16;
+
+    /*
+     * Frame rates of the sweeping second hand the user can pick from, the default, and the CPU
+     * time it may use per minute before falling back to ticking.
+     */
+    public static final int[] SWEEP_FPS_CHOICES = {15, 30, 60};
+    public static final int SWEEP_DEFAULT_FPS = 30;
+    private static final long SWEEP_CPU_BUDGET_MS_PER_MINUTE = TimeUnit.SECONDS.toMillis(3);
+
+    /*
+     * Memory kept in spare bitmaps between asset rebuilds: a background, its gray copy and the
+     * hands on the largest screens.
+     */
+    private static final long BITMAP_POOL_MAX_BYTES = 4 * 1024 * 1024;
 
     private static final int LEFT_COMPLICATION_ID = 100;
     private static final int RIGHT_COMPLICATION_ID = 101;
 
-    private static final int GRAY = Color.rgb(187, 187, 187);
-    private static final int ORANGE = Color.rgb(244, 128, 36);
+    static final int GRAY = Color.rgb(187, 187, 187);
+    static final int ORANGE = Color.rgb(244, 128, 36);
 
     private static final int[] COMPLICATION_IDS = {
             LEFT_COMPLICATION_ID, RIGHT_COMPLICATION_ID
@@ -125,11 +151,30 @@ public class SOWatchFace extends CanvasWatchFaceService {
         }
     }
 
+    /* Engines between onCreate() and onDestroy(), to pass memory trim events to. */
+    private final List<Engine> mEngines = new ArrayList<>();
+
     @Override
     public Engine onCreateEngine() {
         return new Engine();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        for (Engine engine : mEngines) {
+            engine.onTrimMemory(level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        for (Engine engine : mEngines) {
+            engine.onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+    }
+
     private static class EngineHandler extends Handler {
         private final WeakReference<SOWatchFace.Engine> mWeakReference;
 
@@ -150,15 +195,28 @@ public class SOWatchFace extends CanvasWatchFaceService {
         }
     }
 
-    private class Engine extends CanvasWatchFaceService.Engine {
-        /* Handler to update the time once a second in interactive mode. */
+    class Engine extends CanvasWatchFaceService.Engine {
+        /* Handler to update the time in interactive mode, as often as mFrameScheduler says. */
         private final Handler mUpdateTimeHandler = new EngineHandler(this);
-        private Calendar mCalendar;
+        private FrameScheduler mFrameScheduler;
+        /* Replaces the timer with Choreographer frames while the sweep mode is on. */
+        private SweepSecondHand mSweepSecondHand;
+
+        /*
+         * The current time zone and its offset from UTC. TimeZone.getDefault() returns a new
+         * copy on every call, and Calendar field lookups are costly, so the offset is cached
+         * and the hand positions are calculated from it directly. The offset is refreshed when
+         * the time zone changes and once a minute to pick up daylight saving transitions.
+         */
+        private TimeZone mTimeZone;
+        private long mUtcOffsetMillis;
+        private long mUtcOffsetMinute = -1;
+
         private final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mCalendar.setTimeZone(TimeZone.getDefault());
-                invalidate();
+                updateTimeZone();
+                invalidateStaticLayer();
             }
         };
         private boolean mRegisteredTimeZoneReceiver = false;
@@ -167,16 +225,29 @@ public class SOWatchFace extends CanvasWatchFaceService {
         private float mCenterY;
         private Paint mBackgroundPaint;
         private Paint mForeGroundPaint;
+        /* Desaturate the colored background while drawing, when there is no gray copy. */
+        private Paint mGrayFilterPaint;
 
-        private Bitmap mBackgroundBitmap;
-        private Bitmap mGrayBackgroundBitmap;
-        private Bitmap mMainTickBitmap;
-        private Bitmap mGrayMainTickBitmap;
-        private Bitmap mHourBitmap;
-        private Bitmap mGrayHourBitmap;
-        private Bitmap mMinuteBitmap;
-        private Bitmap mGrayMinuteBitmap;
-        private Bitmap mSecondBitmap;
+        /*
+         * The bitmaps currently drawn, owned by mAssetCache, which builds them in the background
+         * and trims them under memory pressure. Null until the first set has been built.
+         */
+        private FaceAssets mAssets;
+        private FaceAssetCache mAssetCache;
+        private FaceAssetBuilder mAssetBuilder;
+        /* Bitmaps of replaced sets, reused by the next rebuild. */
+        private BitmapPool mBitmapPool;
+        private int mMemoryClass;
+
+        /*
+         * Offscreen layer holding everything that doesn't move with the hands: background,
+         * unread notification indicator, complications and the UTC notch. It is only recomposed
+         * when one of those changes, so a regular frame is a single blit plus the hands.
+         */
+        private Bitmap mStaticLayerBitmap;
+        private Canvas mStaticLayerCanvas;
+        private boolean mStaticLayerValid = false;
+        private long mStaticLayerMinute = -1;
 
         // Used to pull user's preferences for background color, highlight color, and visual
         // indicating there are unread notifications.
@@ -186,6 +257,9 @@ public class SOWatchFace extends CanvasWatchFaceService {
         private boolean mUnreadNotificationsPreference;
         private boolean mUTCNotchPreference;
         private boolean mDesignPreference;
+        private boolean mSpriteAtlasPreference;
+        private boolean mSweepPreference;
+        private boolean mVectorHandsPreference;
         private String mSiteName = "";
         private int mUserId;
         private int mSEUserId;
@@ -211,9 +285,36 @@ public class SOWatchFace extends CanvasWatchFaceService {
         private int mScreenWidth = -1;
         private int mScreenHeight = -1;
 
+        /*
+         * Draw timings, kept separately for each mode and design, see getFrameStats(). They can
+         * be read with
+         * adb shell dumpsys activity service hu.sztupy.sowatchface/.watchface.SOWatchFace
+         */
+        private final FrameStats[] mFrameStats = {
+                new FrameStats("interactive, simple design", FRAME_DEADLINE_MS),
+                new FrameStats("interactive, SWAG design", FRAME_DEADLINE_MS),
+                new FrameStats("ambient, simple design", FRAME_DEADLINE_MS),
+                new FrameStats("ambient, SWAG design", FRAME_DEADLINE_MS)
+        };
+
+        /*
+         * The hand renderers, null until the surface is sized. The hands are drawn through the
+         * one picked by the vector hands preference, see getHandRenderer().
+         */
+        private BitmapHandRenderer mBitmapHands;
+        private VectorHandRenderer mVectorHands;
+
+        // Lowers the drawing quality when frames run long, see applyRenderTier().
+        private final RenderGovernor mRenderGovernor = new RenderGovernor(FRAME_DEADLINE_MS);
+
+        // Startup time, until the first frame drawn with the prepared background and hands.
+        private long mCreateElapsedMillis;
+        private long mFirstFullQualityFrameMillis = -1;
+
         @Override
         public void onCreate(SurfaceHolder holder) {
             super.onCreate(holder);
+            mCreateElapsedMillis = SystemClock.elapsedRealtime();
 
             setWatchFaceStyle(new WatchFaceStyle.Builder(SOWatchFace.this)
                     .setAcceptsTapEvents(true)
@@ -227,14 +328,62 @@ public class SOWatchFace extends CanvasWatchFaceService {
                             getString(R.string.analog_complication_preference_file_key),
                             Context.MODE_PRIVATE);
 
-            mCalendar = Calendar.getInstance();
+            ActivityManager activityManager =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            mMemoryClass = activityManager.getMemoryClass();
+            GrayscaleStrategy grayscaleStrategy = GrayscaleStrategy.forDevice(activityManager);
+            Log.d(TAG, "Memory class " + mMemoryClass + "MB, using " + grayscaleStrategy
+                    + " grayscale images");
+
+            mFrameScheduler = new AdaptiveFrameScheduler(context);
+            mSweepSecondHand = new SweepSecondHand(new SweepSecondHand.Callback() {
+                @Override
+                public void onSweepFrame() {
+                    if (!shouldSweepBeRunning()) {
+                        // The scheduler stepped down, e.g. to save battery; go back to ticking.
+                        updateTimer();
+                        return;
+                    }
+                    // Only the hands move, the static layer stays valid.
+                    invalidate();
+                }
+
+                @Override
+                public void onSweepBudgetExceeded() {
+                    updateTimer();
+                }
+            }, SWEEP_DEFAULT_FPS, SWEEP_CPU_BUDGET_MS_PER_MINUTE);
+            updateTimeZone();
             mLogoService = new LogoDownloadService(context);
             mSiteListService = new SiteListService(context);
 
+            mBitmapPool = new BitmapPool(BITMAP_POOL_MAX_BYTES);
+            mAssetBuilder = new FaceAssetBuilder(getResources(), mLogoService,
+                    mSiteListService,
+                    new FaceAssetDiskCache(context.getCacheDir(), mLogoService, mBitmapPool),
+                    mBitmapPool);
+            mAssetCache = new FaceAssetCache(mAssetBuilder, mBitmapPool, mUpdateTimeHandler,
+                    grayscaleStrategy,
+                    new FaceAssetCache.Listener() {
+                        @Override
+                        public void onAssetsChanged(FaceAssets assets) {
+                            mAssets = assets;
+                            if (mBitmapHands != null) {
+                                mBitmapHands.setAssets(assets);
+                            }
+                            invalidateStaticLayer();
+
+                            if (mAmbient) {
+                                mAssetCache.requestGrayAssets();
+                            }
+                        }
+                    });
+            mEngines.add(this);
+
+            initializePaints();
             initializeLogoDownload();
             loadSavedPreferences();
             initializeComplications();
-            initializeBackground();
         }
 
         private void initializeLogoDownload() {
@@ -261,6 +410,18 @@ public class SOWatchFace extends CanvasWatchFaceService {
             String designPreferenceResourceName =
                     getApplicationContext().getString(R.string.saved_design_pref);
 
+            String spriteAtlasPreferenceResourceName =
+                    getApplicationContext().getString(R.string.saved_sprite_atlas_pref);
+
+            String sweepPreferenceResourceName =
+                    getApplicationContext().getString(R.string.saved_sweep_pref);
+
+            String sweepFpsPreferenceResourceName =
+                    getApplicationContext().getString(R.string.saved_sweep_fps_pref);
+
+            String vectorHandsPreferenceResourceName =
+                    getApplicationContext().getString(R.string.saved_vector_hands_pref);
+
             String userIdPreferenceResourceName =
                     getApplicationContext().getString(R.string.saved_user_id_pref);
 
@@ -268,6 +429,7 @@ public class SOWatchFace extends CanvasWatchFaceService {
                     getApplicationContext().getString(R.string.saved_se_user_id_pref);
 
             boolean oldDesignPreference = mDesignPreference;
+            boolean oldSpriteAtlasPreference = mSpriteAtlasPreference;
             String oldSiteName = mSiteName;
             int oldUserId = mUserId;
             int oldSEUserId = mSEUserId;
@@ -278,9 +440,24 @@ public class SOWatchFace extends CanvasWatchFaceService {
             mUTCNotchPreference =
                     mSharedPref.getBoolean(utcNotchPreferenceResourceName, true);
 
+            invalidateStaticLayer();
+
             mDesignPreference =
                     mSharedPref.getBoolean(designPreferenceResourceName, true);
 
+            mSpriteAtlasPreference =
+                    mSharedPref.getBoolean(spriteAtlasPreferenceResourceName, false);
+
+            boolean oldSweepPreference = mSweepPreference;
+            mSweepPreference =
+                    mSharedPref.getBoolean(sweepPreferenceResourceName, false);
+
+            mSweepSecondHand.setFrameRate(
+                    mSharedPref.getInt(sweepFpsPreferenceResourceName, SWEEP_DEFAULT_FPS));
+
+            mVectorHandsPreference =
+                    mSharedPref.getBoolean(vectorHandsPreferenceResourceName, false);
+
             mUserId =
                     mSharedPref.getInt(userIdPreferenceResourceName, JON_SKEET_ID);
 
@@ -306,8 +483,33 @@ public class SOWatchFace extends CanvasWatchFaceService {
                 regenerateScreenData();
                 setActiveComplications(COMPLICATION_IDS);
             }
+
+            if (oldSpriteAtlasPreference != mSpriteAtlasPreference) {
+                regenerateScreenData();
+            }
+
+            if (oldSweepPreference != mSweepPreference) {
+                updateTimer();
+            }
         }
 
+        private final Drawable.Callback mComplicationCallback = new Drawable.Callback() {
+            @Override
+            public void invalidateDrawable(Drawable who) {
+                invalidateStaticLayer();
+            }
+
+            @Override
+            public void scheduleDrawable(Drawable who, Runnable what, long when) {
+                mUpdateTimeHandler.postAtTime(what, who, when);
+            }
+
+            @Override
+            public void unscheduleDrawable(Drawable who, Runnable what) {
+                mUpdateTimeHandler.removeCallbacks(what, who);
+            }
+        };
+
         private void initializeComplications() {
             mActiveComplicationDataSparseArray = new SparseArray<>(COMPLICATION_IDS.length);
 
@@ -327,6 +529,11 @@ public class SOWatchFace extends CanvasWatchFaceService {
             mComplicationDrawableSparseArray.put(LEFT_COMPLICATION_ID, leftComplicationDrawable);
             mComplicationDrawableSparseArray.put(RIGHT_COMPLICATION_ID, rightComplicationDrawable);
 
+            // Complications load their images asynchronously and highlight themselves on tap,
+            // both of which need the cached static layer to be recomposed.
+            leftComplicationDrawable.setCallback(mComplicationCallback);
+            rightComplicationDrawable.setCallback(mComplicationCallback);
+
             setComplicationsActiveAndAmbientColors();
             setActiveComplications(COMPLICATION_IDS);
         }
@@ -356,64 +563,55 @@ public class SOWatchFace extends CanvasWatchFaceService {
             }
         }
 
-        private void initializeBackground() {
+        private void initializePaints() {
             mBackgroundPaint = new Paint();
             mBackgroundPaint.setColor(Color.BLACK);
 
-            mForeGroundPaint = new Paint();
+            mForeGroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
             mForeGroundPaint.setColor(GRAY);
 
-            if (mDesignPreference) {
-                mBackgroundBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.bg_2);
-            } else {
-                mBackgroundBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.bg_1);
-            }
-
-            mMainTickBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.main_tick);
-            mHourBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.hour);
-            mMinuteBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.minute);
-            mSecondBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.second);
+            ColorMatrix grayMatrix = new ColorMatrix();
+            grayMatrix.setSaturation(0);
+            mGrayFilterPaint = new Paint();
+            mGrayFilterPaint.setColorFilter(new ColorMatrixColorFilter(grayMatrix));
 
-            addIconsToBackground();
+            applyRenderTier();
         }
 
-        private void addIconsToBackground() {
-            if (mLogoService.logoExists(mLogoService.getCurrentSiteCodeName())){
-                Bitmap icon = BitmapFactory.decodeFile(mLogoService.getIconFile(mLogoService.getCurrentSiteCodeName()).getAbsolutePath());
-
-                mBackgroundBitmap = mBackgroundBitmap.copy(Bitmap.Config.ARGB_8888, true);
-
-                if (mDesignPreference) {
-                    // for the SWAG watch we draw a small logo, and the title text nearby
-                    Bitmap smallLogo = LogoDownloadService.resizeLogo(icon, 36, 36);
-
-                    Canvas canvas = new Canvas(mBackgroundBitmap);
-                    canvas.drawBitmap(smallLogo, 144 - smallLogo.getWidth() / 2, 113 - smallLogo.getHeight() / 2, null);
-
-                    Paint font = new Paint();
-                    font.setTypeface(Typeface.create(Typeface.SERIF, Typeface.BOLD));
-                    font.setColor(ORANGE);
-                    font.setTextAlign(Paint.Align.LEFT);
-                    font.setTextSize(24);
-
-                    String shortName = mSiteListService.getShortName(mLogoService.getCurrentSiteCodeName());
-                    canvas.drawText(shortName, 167, 123, font);
-                } else {
-                    // for the simple watch we just draw the logo dimmed
-                    Paint alphaPaint = new Paint();
-                    alphaPaint.setAlpha(110);
-
-                    Bitmap largeLogo = LogoDownloadService.resizeLogo(icon, 150, 150);
-                    Canvas canvas = new Canvas(mBackgroundBitmap);
-                    canvas.drawBitmap(largeLogo, 160 - largeLogo.getWidth() / 2, 160 - largeLogo.getHeight() / 2, alphaPaint);
-                }
-
+        /**
+         * Updates the paints to the quality tier chosen by {@link #mRenderGovernor}. The UTC
+         * notch and second hand tiers are checked while drawing.
+         */
+        private void applyRenderTier() {
+            int tier = mRenderGovernor.getTier();
+
+            if (mBitmapHands != null) {
+                mBitmapHands.setStyle(mAmbient, mLowBitAmbient, mBurnInProtection,
+                        tier < RenderGovernor.TIER_NO_ANTI_ALIAS,
+                        tier < RenderGovernor.TIER_NO_FILTERING);
+                mVectorHands.setStyle(mAmbient, mLowBitAmbient, mBurnInProtection,
+                        tier < RenderGovernor.TIER_NO_ANTI_ALIAS,
+                        tier < RenderGovernor.TIER_NO_FILTERING);
             }
+            mForeGroundPaint.setAntiAlias(tier < RenderGovernor.TIER_NO_ANTI_ALIAS
+                    && !(mAmbient && mLowBitAmbient));
+
+            // The notch and notification indicator live in the static layer.
+            invalidateStaticLayer();
         }
 
         @Override
         public void onDestroy() {
             mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
+            mFrameScheduler.stop();
+            mSweepSecondHand.stop();
+            // Also stops the asset builder's worker threads, once the running build is done.
+            mAssetCache.release();
+            mAssets = null;
+            if (mBitmapHands != null) {
+                mBitmapHands.setAssets(null);
+            }
+            mEngines.remove(this);
             super.onDestroy();
         }
 
@@ -433,6 +631,13 @@ public class SOWatchFace extends CanvasWatchFaceService {
                 complicationDrawable.setLowBitAmbient(mLowBitAmbient);
                 complicationDrawable.setBurnInProtection(mBurnInProtection);
             }
+
+            // The ambient mode assets depend on burn-in protection and low-bit ambient mode.
+            if (mAssets != null && (mAssets.spec.burnInProtection != mBurnInProtection
+                    || mAssets.spec.lowBitAmbient != mLowBitAmbient)) {
+                regenerateScreenData();
+            }
+            applyRenderTier();
         }
 
         @Override
@@ -457,10 +662,58 @@ public class SOWatchFace extends CanvasWatchFaceService {
                 complicationDrawable.setInAmbientMode(mAmbient);
             }
 
+            if (!mAmbient) {
+                // The layer may have been freed by onTrimMemory(), it pays off again now.
+                ensureStaticLayer();
+            }
+            // Also invalidates the static layer.
+            applyRenderTier();
+
+            if (mAmbient) {
+                mAssetCache.requestGrayAssets();
+            } else {
+                // The user turned the wrist to look at the watch.
+                mFrameScheduler.onUserActivity(System.currentTimeMillis());
+            }
+
             // Check and trigger whether or not timer should be running (only in active mode).
             updateTimer();
         }
 
+        /**
+         * Forwarded from {@link SOWatchFace#onTrimMemory(int)}. The full screen static layer goes
+         * first, the frames are drawn without it until the face is shown again or leaves ambient
+         * mode. The images dropped by the cache are rebuilt when they are drawn next.
+         */
+        private void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW && mStaticLayerBitmap != null) {
+                Log.i(TAG, "Trim level " + level + " freed the static layer, "
+                        + (mStaticLayerBitmap.getAllocationByteCount() / 1024) + "KB");
+                mStaticLayerBitmap.recycle();
+                mStaticLayerBitmap = null;
+                mStaticLayerCanvas = null;
+                mStaticLayerValid = false;
+            }
+            mAssetCache.onTrimMemory(level, isVisible());
+        }
+
+        /**
+         * Creates the static layer for the current screen size, unless it is unknown yet or the
+         * layer already fits.
+         */
+        private void ensureStaticLayer() {
+            if (mScreenWidth <= 0 || mScreenHeight <= 0) {
+                return;
+            }
+            if (mStaticLayerBitmap == null
+                    || mStaticLayerBitmap.getWidth() != mScreenWidth
+                    || mStaticLayerBitmap.getHeight() != mScreenHeight) {
+                mStaticLayerBitmap = Bitmap.createBitmap(
+                        mScreenWidth, mScreenHeight, Bitmap.Config.ARGB_8888);
+                mStaticLayerCanvas = new Canvas(mStaticLayerBitmap);
+            }
+        }
+
         @Override
         public void onInterruptionFilterChanged(int interruptionFilter) {
             super.onInterruptionFilterChanged(interruptionFilter);
@@ -483,49 +736,20 @@ public class SOWatchFace extends CanvasWatchFaceService {
             mCenterX = width / 2f;
             mCenterY = height / 2f;
 
+            mBitmapHands = new BitmapHandRenderer(mCenterX, mCenterY);
+            mBitmapHands.setAssets(mAssets);
+            mVectorHands = new VectorHandRenderer(width, height);
+            applyRenderTier();
+
             regenerateScreenData();
         }
 
         private void regenerateScreenData() {
             Log.d(TAG, "Regenerating Screen Data");
 
-            initializeBackground();
-
             if (mScreenWidth == -1 || mScreenHeight == -1)
                 return;
 
-            /* Scale loaded background image (more efficient) if surface dimensions change. */
-            float scale = ((float) mScreenWidth) / (float) mBackgroundBitmap.getWidth();
-
-            mBackgroundBitmap = Bitmap.createScaledBitmap(mBackgroundBitmap,
-                    (int) (mBackgroundBitmap.getWidth() * scale),
-                    (int) (mBackgroundBitmap.getHeight() * scale), true);
-            mMainTickBitmap = Bitmap.createScaledBitmap(mMainTickBitmap,
-                    (int) (mMainTickBitmap.getWidth() * scale),
-                    (int) (mMainTickBitmap.getHeight() * scale), true);
-            mHourBitmap = Bitmap.createScaledBitmap(mHourBitmap,
-                    (int) (mHourBitmap.getWidth() * scale),
-                    (int) (mHourBitmap.getHeight() * scale), true);
-            mMinuteBitmap = Bitmap.createScaledBitmap(mMinuteBitmap,
-                    (int) (mMinuteBitmap.getWidth() * scale),
-                    (int) (mMinuteBitmap.getHeight() * scale), true);
-            mSecondBitmap = Bitmap.createScaledBitmap(mSecondBitmap,
-                    (int) (mSecondBitmap.getWidth() * scale),
-                    (int) (mSecondBitmap.getHeight() * scale), true);
-            /*
-             * Create a gray version of the image only if it will look nice on the device in
-             * ambient mode. That means we don't want devices that support burn-in
-             * protection (slight movements in pixels, not great for images going all the way to
-             * edges) and low ambient mode (degrades image quality).
-             *
-             * Also, if your watch face will know about all images ahead of time (users aren't
-             * selecting their own photos for the watch face), it will be more
-             * efficient to create a black/white version (png, etc.) and load that when you need it.
-             */
-            if (!mBurnInProtection) {
-                initGrayBackgroundBitmap();
-            }
-
             int sizeOfComplication = mScreenWidth / 5;
             int midpointOfScreen = mScreenWidth / 2;
 
@@ -555,40 +779,27 @@ public class SOWatchFace extends CanvasWatchFaceService {
             ComplicationDrawable rightComplicationDrawable =
                     mComplicationDrawableSparseArray.get(RIGHT_COMPLICATION_ID);
             rightComplicationDrawable.setBounds(rightBounds);
+
+            ensureStaticLayer();
+            invalidateStaticLayer();
+
+            requestAssetRebuild();
         }
 
-        private void initGrayBackgroundBitmap() {
-            mGrayBackgroundBitmap = Bitmap.createBitmap(
-                    mBackgroundBitmap.getWidth(),
-                    mBackgroundBitmap.getHeight(),
-                    Bitmap.Config.ARGB_8888);
-            mGrayHourBitmap = Bitmap.createBitmap(
-                    mHourBitmap.getWidth(),
-                    mHourBitmap.getHeight(),
-                    Bitmap.Config.ARGB_8888);
-            mGrayMainTickBitmap = Bitmap.createBitmap(
-                    mMainTickBitmap.getWidth(),
-                    mMainTickBitmap.getHeight(),
-                    Bitmap.Config.ARGB_8888);
-            mGrayMinuteBitmap = Bitmap.createBitmap(
-                    mMinuteBitmap.getWidth(),
-                    mMinuteBitmap.getHeight(),
-                    Bitmap.Config.ARGB_8888);
-
-            Paint grayPaint = new Paint();
-            ColorMatrix colorMatrix = new ColorMatrix();
-            colorMatrix.setSaturation(0);
-            ColorMatrixColorFilter filter = new ColorMatrixColorFilter(colorMatrix);
-            grayPaint.setColorFilter(filter);
-
-            Canvas canvas = new Canvas(mGrayBackgroundBitmap);
-            canvas.drawBitmap(mBackgroundBitmap, 0, 0, grayPaint);
-            canvas = new Canvas(mGrayHourBitmap);
-            canvas.drawBitmap(mHourBitmap, 0, 0, grayPaint);
-            canvas = new Canvas(mGrayMainTickBitmap);
-            canvas.drawBitmap(mMainTickBitmap, 0, 0, grayPaint);
-            canvas = new Canvas(mGrayMinuteBitmap);
-            canvas.drawBitmap(mMinuteBitmap, 0, 0, grayPaint);
+        /**
+         * Starts building a new asset set in the background for the current settings. The
+         * current set keeps being drawn until the new one is complete.
+         */
+        private void requestAssetRebuild() {
+            mAssetCache.request(new FaceAssetBuilder.Spec(
+                    mDesignPreference,
+                    mSpriteAtlasPreference,
+                    mBurnInProtection,
+                    mLowBitAmbient,
+                    mAssetCache.getGrayscaleStrategy(),
+                    mSiteName,
+                    mScreenWidth,
+                    mScreenHeight));
         }
 
         /*
@@ -607,7 +818,7 @@ public class SOWatchFace extends CanvasWatchFaceService {
                     mComplicationDrawableSparseArray.get(complicationId);
             complicationDrawable.setComplicationData(complicationData);
 
-            invalidate();
+            invalidateStaticLayer();
         }
 
         /**
@@ -616,6 +827,10 @@ public class SOWatchFace extends CanvasWatchFaceService {
          */
         @Override
         public void onTapCommand(int tapType, int x, int y, long eventTime) {
+            // Go back to the full update rate in case the scheduler slowed down.
+            mFrameScheduler.onUserActivity(System.currentTimeMillis());
+            updateTimer();
+
             switch (tapType) {
                 case TAP_TYPE_TAP:
 
@@ -630,6 +845,7 @@ public class SOWatchFace extends CanvasWatchFaceService {
                         boolean successfulTap = complicationDrawable.onTap(x, y);
 
                         if (successfulTap) {
+                            invalidateStaticLayer();
                             return;
                         }
                     }
@@ -640,22 +856,146 @@ public class SOWatchFace extends CanvasWatchFaceService {
 
         @Override
         public void onDraw(Canvas canvas, Rect bounds) {
+            long frameStartNanos = System.nanoTime();
+            FrameStats stats = getFrameStats();
+
             long now = System.currentTimeMillis();
-            mCalendar.setTimeInMillis(now);
+            long minute = TimeUnit.MILLISECONDS.toMinutes(now);
+            if (minute != mUtcOffsetMinute) {
+                updateUtcOffset(now);
+            }
+
+            if (mStaticLayerBitmap == null) {
+                // Surface size isn't known yet, or the layer was freed by onTrimMemory(), so there
+                // is no layer to cache into.
+                drawStaticContent(canvas, now, stats);
+            } else {
+                // Complications may show time dependent text, so refresh them once a minute.
+                if (!mStaticLayerValid || minute != mStaticLayerMinute) {
+                    drawStaticContent(mStaticLayerCanvas, now, stats);
+                    mStaticLayerValid = true;
+                    mStaticLayerMinute = minute;
+                }
+                long copyStartNanos = System.nanoTime();
+                canvas.drawBitmap(mStaticLayerBitmap, 0, 0, null);
+                stats.record(FrameStats.PHASE_LAYER_COPY, System.nanoTime() - copyStartNanos);
+            }
+
+            long handsStartNanos = System.nanoTime();
+            drawWatchFace(canvas, now + mUtcOffsetMillis);
+            long frameEndNanos = System.nanoTime();
+            stats.record(FrameStats.PHASE_HANDS, frameEndNanos - handsStartNanos);
+            stats.recordFrame(frameEndNanos - frameStartNanos);
+
+            if (mSweepSecondHand.isRunning()) {
+                mSweepSecondHand.recordFrameCost(now);
+            }
+
+            if (mRenderGovernor.recordFrame(frameEndNanos - frameStartNanos)) {
+                applyRenderTier();
+            }
+
+            if (mFirstFullQualityFrameMillis < 0 && mAssets != null && mAssets.background != null) {
+                mFirstFullQualityFrameMillis = SystemClock.elapsedRealtime() - mCreateElapsedMillis;
+                Log.i(TAG, "First full quality frame " + mFirstFullQualityFrameMillis
+                        + "ms after creation");
+            }
+        }
+
+        /**
+         * Returns the set currently drawn, or null while the first one is being built.
+         */
+        @VisibleForTesting
+        FaceAssets getAssets() {
+            return mAssets;
+        }
+
+        private FrameStats getFrameStats() {
+            return mFrameStats[(mAmbient ? 2 : 0) + (mDesignPreference ? 1 : 0)];
+        }
+
+        @Override
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+            super.dump(prefix, fd, writer, args);
+
+            mAssetCache.dump(prefix, writer);
+            mBitmapPool.dump(prefix, writer);
+            LogoCache.getInstance().dump(prefix, writer);
+            StackExchangeClients.dump(prefix, writer);
+            writer.print(prefix);
+            writer.print("Memory: memoryClass=");
+            writer.print(mMemoryClass);
+            writer.print("MB javaHeap=");
+            writer.print((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1024);
+            writer.print("KB nativeHeap=");
+            writer.print(Debug.getNativeHeapAllocatedSize() / 1024);
+            writer.println("KB");
+
+            mFrameScheduler.dump(prefix, writer);
+            mSweepSecondHand.dump(prefix, writer);
+            mRenderGovernor.dump(prefix, writer);
+            writer.print(prefix);
+            writer.print("Startup: firstFullQualityFrame=");
+            writer.print(mFirstFullQualityFrameMillis);
+            writer.println("ms");
+            writer.print(prefix);
+            writer.println("Frame timings:");
+            for (FrameStats stats : mFrameStats) {
+                stats.dump(prefix + "  ", writer);
+            }
+        }
+
+        private void updateTimeZone() {
+            mTimeZone = TimeZone.getDefault();
+            updateUtcOffset(System.currentTimeMillis());
+        }
+
+        private void updateUtcOffset(long currentTimeMillis) {
+            mUtcOffsetMillis = mTimeZone.getOffset(currentTimeMillis);
+            mUtcOffsetMinute = TimeUnit.MILLISECONDS.toMinutes(currentTimeMillis);
+        }
+
+        /**
+         * Marks the cached static layer as stale and requests a redraw. Call this whenever the
+         * background, complications, notification indicator or UTC notch need to change.
+         */
+        private void invalidateStaticLayer() {
+            mStaticLayerValid = false;
+            invalidate();
+        }
 
+        private void drawStaticContent(Canvas canvas, long currentTimeMillis, FrameStats stats) {
+            long startNanos = System.nanoTime();
             drawBackground(canvas);
+            long backgroundEndNanos = System.nanoTime();
             drawUnreadNotificationIcon(canvas);
-            drawComplications(canvas, now);
-            drawWatchFace(canvas);
+            long notificationEndNanos = System.nanoTime();
+            drawComplications(canvas, currentTimeMillis);
+            long complicationsEndNanos = System.nanoTime();
+            drawUTCNotch(canvas, currentTimeMillis);
+            long notchEndNanos = System.nanoTime();
+
+            stats.record(FrameStats.PHASE_BACKGROUND, backgroundEndNanos - startNanos);
+            stats.record(FrameStats.PHASE_NOTIFICATION, notificationEndNanos - backgroundEndNanos);
+            stats.record(FrameStats.PHASE_COMPLICATIONS, complicationsEndNanos - notificationEndNanos);
+            stats.record(FrameStats.PHASE_UTC_NOTCH, notchEndNanos - complicationsEndNanos);
         }
 
         private void drawBackground(Canvas canvas) {
-            if (mAmbient && (mBurnInProtection)) {
+            if (mAssets == null || isLowBitAmbientFrame()) {
+                canvas.drawColor(Color.BLACK);
+            } else if (mAmbient && mAssets.grayBackground != null) {
+                canvas.drawBitmap(mAssets.grayBackground, 0, 0, mBackgroundPaint);
+            } else if (mAmbient && !isGrayFilterFrame()) {
+                // Burn-in protection, keep the screen dark.
                 canvas.drawColor(Color.BLACK);
-            } else if (mAmbient) {
-                canvas.drawBitmap(mGrayBackgroundBitmap, 0, 0, mBackgroundPaint);
+            } else if (mAssets.background == null) {
+                // Trimmed under memory pressure, stay dark until it has been rebuilt.
+                canvas.drawColor(Color.BLACK);
+                mAssetCache.requestBackground();
             } else {
-                canvas.drawBitmap(mBackgroundBitmap, 0, 0, mBackgroundPaint);
+                canvas.drawBitmap(mAssets.background, 0, 0,
+                        isGrayFilterFrame() ? mGrayFilterPaint : mBackgroundPaint);
             }
         }
 
@@ -690,54 +1030,95 @@ public class SOWatchFace extends CanvasWatchFaceService {
             }
         }
 
-        private void drawWatchFace(Canvas canvas) {
+        /*
+         * Draw the UTC offset which will show the time when SO resets itself
+         */
+        private void drawUTCNotch(Canvas canvas, long currentTimeMillis) {
+            if (mUTCNotchPreference && mAssets != null
+                    && mRenderGovernor.getTier() < RenderGovernor.TIER_NO_UTC_NOTCH) {
+                final float offsetFromUtc = mUtcOffsetMillis / 1000;
+
+                final float mainTickRotation = offsetFromUtc / 120;
+                getHandRenderer().drawUtcNotch(canvas, mainTickRotation);
+            }
+        }
+
+        /**
+         * Returns the renderer drawing the hands and the UTC notch: paths when the vector hands
+         * are switched on, the hand images otherwise. Null until the surface is sized.
+         */
+        private HandRenderer getHandRenderer() {
+            return mVectorHandsPreference ? mVectorHands : mBitmapHands;
+        }
+
+        /**
+         * Returns whether the second hand is drawn in the current interactive frame. It is
+         * dropped to keep up on a slow watch, or to save battery.
+         */
+        private boolean isSecondHandShown(boolean sweeping) {
+            return mRenderGovernor.getTier() < RenderGovernor.TIER_NO_SECOND_HAND
+                    && (sweeping || mFrameScheduler.isSecondHandVisible());
+        }
+
+        /**
+         * Returns whether the current frame uses the low-bit ambient pipeline: no background,
+         * and thresholded hands drawn in a solid color.
+         */
+        private boolean isLowBitAmbientFrame() {
+            return mAmbient && mLowBitAmbient && mAssets != null && mAssets.lowBitHourHand != null;
+        }
+
+        /**
+         * Returns whether the current frame should desaturate the colored images while drawing,
+         * because there are no gray copies (yet).
+         */
+        private boolean isGrayFilterFrame() {
+            return mAmbient && mAssets != null && mAssets.isMissingGrayAssets();
+        }
+
+        /**
+         * Draws the hands for the given local time, in milliseconds since the epoch shifted by
+         * the time zone's offset.
+         */
+        private void drawWatchFace(Canvas canvas, long localTimeMillis) {
+            if (mAssets == null) {
+                return;
+            }
+            final HandRenderer hands = getHandRenderer();
+
+            final int minutes = (int) ((localTimeMillis / MINUTE_MS) % 60);
+            final int hours = (int) ((localTimeMillis / HOUR_MS) % 12);
+
             /*
              * These calculations reflect the rotation in degrees per unit of time, e.g.,
              * 360 / 60 = 6 and 360 / 12 = 30.
              */
-            final float seconds = mCalendar.get(Calendar.SECOND);
+            final boolean sweeping = mSweepSecondHand.isRunning();
+            final float seconds = sweeping
+                    ? (localTimeMillis % MINUTE_MS) / (float) SECOND_MS
+                    : (localTimeMillis / SECOND_MS) % 60;
             final float secondsRotation = seconds * 6f;
 
-            final float minutesHandOffset = seconds / 10f;
-            final float minutesRotation = mCalendar.get(Calendar.MINUTE) * 6f + minutesHandOffset;
-
-            final float hourHandOffset = mCalendar.get(Calendar.MINUTE) / 2f;
-            final float hoursRotation = (mCalendar.get(Calendar.HOUR) * 30) + hourHandOffset;
-
             /*
-             * Draw the UTC offset which will show the time when SO resets itself
+             * In ambient mode we only wake up once a minute, so the minute hand is drawn at whole
+             * minute positions, which the ambient sprite atlases have sprites for.
              */
-            final TimeZone tz = TimeZone.getDefault();
-            final Date now = new Date();
-            final float offsetFromUtc = tz.getOffset(now.getTime()) / 1000;
-
-            if (mUTCNotchPreference) {
-                final float mainTickRotation = offsetFromUtc / 120;
-                canvas.save();
-                canvas.rotate(mainTickRotation, mCenterX, mCenterY);
-                canvas.drawBitmap(mAmbient ? mGrayMainTickBitmap : mMainTickBitmap, 0, 0, null);
-                canvas.restore();
-            }
+            final float minutesHandOffset = mAmbient ? 0f : seconds / 10f;
+            final float minutesRotation = minutes * 6f + minutesHandOffset;
 
-            canvas.save();
-            canvas.rotate(hoursRotation, mCenterX, mCenterY);
-            canvas.drawBitmap(mAmbient ? mGrayHourBitmap : mHourBitmap, 0, 0, null);
-            canvas.restore();
+            final float hourHandOffset = minutes / 2f;
+            final float hoursRotation = (hours * 30) + hourHandOffset;
 
-            canvas.save();
-            canvas.rotate(minutesRotation, mCenterX, mCenterY);
-            canvas.drawBitmap(mAmbient ? mGrayMinuteBitmap : mMinuteBitmap, 0, 0, null);
-            canvas.restore();
+            hands.drawHourHand(canvas, hoursRotation);
+            hands.drawMinuteHand(canvas, minutesRotation);
 
             /*
              * Ensure the "seconds" hand is drawn only when we are in interactive mode.
-             * Otherwise, we only update the watch face once a minute.
+             * Otherwise, we only update the watch face once a minute. It is also dropped to
+             * keep up on a slow watch, or to save battery.
              */
-            if (!mAmbient) {
-                canvas.save();
-                canvas.rotate(secondsRotation, mCenterX, mCenterY);
-                canvas.drawBitmap(mSecondBitmap, 0, 0, null);
-                canvas.restore();
+            if (!mAmbient && isSecondHandShown(sweeping)) {
+                hands.drawSecondHand(canvas, secondsRotation);
             }
         }
 
@@ -746,13 +1127,16 @@ public class SOWatchFace extends CanvasWatchFaceService {
             super.onVisibilityChanged(visible);
 
             if (visible) {
+                mFrameScheduler.onUserActivity(System.currentTimeMillis());
                 loadSavedPreferences();
                 setComplicationsActiveAndAmbientColors();
 
                 registerReceiver();
                 /* Update time zone in case it changed while we weren't visible. */
-                mCalendar.setTimeZone(TimeZone.getDefault());
-                invalidate();
+                updateTimeZone();
+                // The layer may have been freed by onTrimMemory() while the face was hidden.
+                ensureStaticLayer();
+                invalidateStaticLayer();
             } else {
                 unregisterReceiver();
             }
@@ -766,7 +1150,7 @@ public class SOWatchFace extends CanvasWatchFaceService {
             if (mUnreadNotificationsPreference) {
                 if (mNumberOfUnreadNotifications != count) {
                     mNumberOfUnreadNotifications = count;
-                    invalidate();
+                    invalidateStaticLayer();
                 }
             }
         }
@@ -778,6 +1162,7 @@ public class SOWatchFace extends CanvasWatchFaceService {
             mRegisteredTimeZoneReceiver = true;
             IntentFilter filter = new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED);
             SOWatchFace.this.registerReceiver(mTimeZoneReceiver, filter);
+            mFrameScheduler.start();
         }
 
         private void unregisterReceiver() {
@@ -786,13 +1171,21 @@ public class SOWatchFace extends CanvasWatchFaceService {
             }
             mRegisteredTimeZoneReceiver = false;
             SOWatchFace.this.unregisterReceiver(mTimeZoneReceiver);
+            mFrameScheduler.stop();
         }
 
         /**
-         * Starts/stops the {@link #mUpdateTimeHandler} timer based on the state of the watch face.
+         * Starts/stops the {@link #mUpdateTimeHandler} timer or the {@link #mSweepSecondHand}
+         * based on the state of the watch face.
          */
         private void updateTimer() {
             mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
+            mFrameScheduler.onTimerStopped();
+            if (shouldSweepBeRunning()) {
+                mSweepSecondHand.start(System.currentTimeMillis());
+            } else {
+                mSweepSecondHand.stop();
+            }
             if (shouldTimerBeRunning()) {
                 mUpdateTimeHandler.sendEmptyMessage(MSG_UPDATE_TIME);
             }
@@ -800,10 +1193,22 @@ public class SOWatchFace extends CanvasWatchFaceService {
 
         /**
          * Returns whether the {@link #mUpdateTimeHandler} timer should be running. The timer
-         * should only run in active mode.
+         * should only run in active mode, when the second hand isn't sweeping.
          */
         private boolean shouldTimerBeRunning() {
-            return isVisible() && !mAmbient;
+            return isVisible() && !mAmbient && !mSweepSecondHand.isRunning();
+        }
+
+        /**
+         * Returns whether the second hand should sweep right now: the user wants it, the frame
+         * scheduler updates once a second, e.g. not in power save mode or on a low battery, and
+         * the second hand isn't dropped to keep up. The sweep may still be held back by its CPU
+         * budget.
+         */
+        private boolean shouldSweepBeRunning() {
+            return isVisible() && !mAmbient && mSweepPreference
+                    && mFrameScheduler.allowsBaseInterval(System.currentTimeMillis())
+                    && mRenderGovernor.getTier() < RenderGovernor.TIER_NO_SECOND_HAND;
         }
 
         /**
@@ -811,10 +1216,12 @@ public class SOWatchFace extends CanvasWatchFaceService {
          */
         private void handleUpdateTimeMessage() {
             invalidate();
-            if (shouldTimerBeRunning()) {
-                long timeMs = System.currentTimeMillis();
-                long delayMs = INTERACTIVE_UPDATE_RATE_MS
-                        - (timeMs % INTERACTIVE_UPDATE_RATE_MS);
+            if (shouldSweepBeRunning() && mSweepSecondHand.canRun(System.currentTimeMillis())) {
+                // A new minute started since the sweep ran out of budget, or the scheduler went
+                // back to updating once a second.
+                updateTimer();
+            } else if (shouldTimerBeRunning()) {
+                long delayMs = mFrameScheduler.onWakeup(System.currentTimeMillis());
                 mUpdateTimeHandler.sendEmptyMessageDelayed(MSG_UPDATE_TIME, delayMs);
             }
         }
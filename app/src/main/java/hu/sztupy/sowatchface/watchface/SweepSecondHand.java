@@ -0,0 +1,161 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.os.Debug;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a smoothly sweeping second hand from {@link Choreographer} frame callbacks, at a fixed
+ * frame rate below the display's refresh rate.
+ * <p>
+ * The CPU time the engine's thread uses while sweeping is added up for every wall clock minute:
+ * the frame callbacks, the handler messages and the drawing. Once it goes over the budget the
+ * sweep stops for the rest of that minute, and the watch face goes back to ticking until the
+ * next minute starts.
+ */
+class SweepSecondHand implements Choreographer.FrameCallback {
+    private static final String TAG = "SweepSecondHand";
+
+    /**
+     * Receives the sweep frames.
+     */
+    interface Callback {
+        /* A new frame should be drawn. */
+        void onSweepFrame();
+
+        /* The sweep stopped itself because it ran out of budget; start ticking instead. */
+        void onSweepBudgetExceeded();
+    }
+
+    /* Tolerance for frame callbacks arriving slightly earlier than the ideal frame time. */
+    private static final long FRAME_TIME_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final Callback mCallback;
+    private final long mCpuBudgetNanosPerMinute;
+
+    private Choreographer mChoreographer;
+    private long mFrameIntervalNanos;
+    private boolean mRunning = false;
+    private long mLastFrameTimeNanos;
+    // Thread CPU time of the engine's thread when it was last charged to the budget.
+    private long mCpuBaselineNanos;
+
+    private long mBudgetMinute = -1;
+    private long mSpentNanos;
+    private boolean mOverBudget = false;
+    private int mBudgetExceededCount;
+
+    SweepSecondHand(Callback callback, int framesPerSecond, long cpuBudgetMillisPerMinute) {
+        mCallback = callback;
+        mCpuBudgetNanosPerMinute = TimeUnit.MILLISECONDS.toNanos(cpuBudgetMillisPerMinute);
+        setFrameRate(framesPerSecond);
+    }
+
+    void setFrameRate(int framesPerSecond) {
+        mFrameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, framesPerSecond);
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns whether the budget allows sweeping during the given minute.
+     */
+    boolean canRun(long currentTimeMillis) {
+        rollBudget(currentTimeMillis);
+        return !mOverBudget;
+    }
+
+    /**
+     * Starts requesting frames, if the budget of the current minute allows it. Has to be called
+     * on the engine's thread.
+     *
+     * @return whether the sweep is running
+     */
+    boolean start(long currentTimeMillis) {
+        if (!canRun(currentTimeMillis)) {
+            stop();
+            return false;
+        }
+        if (!mRunning) {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mRunning = true;
+            mLastFrameTimeNanos = 0;
+            mCpuBaselineNanos = Debug.threadCpuTimeNanos();
+            mChoreographer.postFrameCallback(this);
+        }
+        return true;
+    }
+
+    void stop() {
+        if (mRunning) {
+            mRunning = false;
+            mChoreographer.removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        mChoreographer.postFrameCallback(this);
+
+        if (frameTimeNanos - mLastFrameTimeNanos >= mFrameIntervalNanos - FRAME_TIME_SLACK_NANOS) {
+            mLastFrameTimeNanos = frameTimeNanos;
+            mCallback.onSweepFrame();
+        }
+    }
+
+    /**
+     * Charges the CPU time the engine's thread used since the previous sweep frame was drawn to
+     * the budget of the current minute. Has to be called on the engine's thread, at the end of
+     * every frame drawn while sweeping.
+     */
+    void recordFrameCost(long currentTimeMillis) {
+        long cpuNanos = Debug.threadCpuTimeNanos();
+        rollBudget(currentTimeMillis);
+        if (cpuNanos >= 0 && mCpuBaselineNanos >= 0) {
+            mSpentNanos += cpuNanos - mCpuBaselineNanos;
+        }
+        mCpuBaselineNanos = cpuNanos;
+
+        if (mRunning && mSpentNanos > mCpuBudgetNanosPerMinute) {
+            mOverBudget = true;
+            mBudgetExceededCount++;
+            stop();
+            Log.i(TAG, "Sweeping used " + TimeUnit.NANOSECONDS.toMillis(mSpentNanos)
+                    + "ms this minute, ticking until the next one");
+            mCallback.onSweepBudgetExceeded();
+        }
+    }
+
+    private void rollBudget(long currentTimeMillis) {
+        long minute = TimeUnit.MILLISECONDS.toMinutes(currentTimeMillis);
+        if (minute != mBudgetMinute) {
+            mBudgetMinute = minute;
+            mSpentNanos = 0;
+            mOverBudget = false;
+        }
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Sweep: running=");
+        writer.print(mRunning);
+        writer.print(" fps=");
+        writer.print(TimeUnit.SECONDS.toNanos(1) / mFrameIntervalNanos);
+        writer.print(" spentThisMinute=");
+        writer.print(TimeUnit.NANOSECONDS.toMillis(mSpentNanos));
+        writer.print("ms budget=");
+        writer.print(TimeUnit.NANOSECONDS.toMillis(mCpuBudgetNanosPerMinute));
+        writer.print("ms budgetExceeded=");
+        writer.println(mBudgetExceededCount);
+    }
+}
@@ -0,0 +1,158 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.os.Debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A small graph of dependent steps, run on a worker pool. Every step is started as soon as the
+ * steps it depends on have finished, so independent steps, e.g. decoding the hands while the logo
+ * is drawn onto the background, run in parallel.
+ * <p>
+ * A graph is built on one thread, then {@link #run()} once. Whatever a step writes is visible to
+ * the steps depending on it, and to the caller of {@link #run()}.
+ */
+class TaskGraph {
+
+    /**
+     * A step of the graph, returned by {@link #add} to be used as a dependency of later steps.
+     */
+    static final class Task {
+        private final String mName;
+        private final Runnable mWork;
+        private final List<Task> mDependents = new ArrayList<>();
+        private final AtomicInteger mPendingDependencies = new AtomicInteger();
+
+        private Task(String name, Runnable work) {
+            mName = name;
+            mWork = work;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final List<Task> mTasks = new ArrayList<>();
+
+    private CountDownLatch mRemaining;
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    private final AtomicLong mCpuNanos = new AtomicLong();
+    private long mWallNanos;
+
+    TaskGraph(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Adds a step that runs once all given dependencies have finished. Null dependencies are
+     * ignored, so optional steps can be passed as they are.
+     */
+    Task add(String name, Runnable work, Task... dependencies) {
+        Task task = new Task(name, work);
+        for (Task dependency : dependencies) {
+            if (dependency != null) {
+                dependency.mDependents.add(task);
+                task.mPendingDependencies.incrementAndGet();
+            }
+        }
+        mTasks.add(task);
+        return task;
+    }
+
+    /**
+     * Runs every step and waits for all of them to finish. If a step throws, the steps that
+     * haven't started yet are skipped, and the exception is rethrown here once the running ones
+     * are done.
+     */
+    void run() {
+        long startNanos = System.nanoTime();
+        mRemaining = new CountDownLatch(mTasks.size());
+
+        // Collected first, a fast step could otherwise make a dependent ready during the loop.
+        List<Task> ready = new ArrayList<>();
+        for (Task task : mTasks) {
+            if (task.mPendingDependencies.get() == 0) {
+                ready.add(task);
+            }
+        }
+        for (Task task : ready) {
+            submit(task);
+        }
+
+        /*
+         * Steps draw into pooled bitmaps, so even when interrupted this waits until the workers
+         * are done with them; the steps are short.
+         */
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mRemaining.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mWallNanos = System.nanoTime() - startNanos;
+
+        Throwable failure = mFailure.get();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw (Error) failure;
+        }
+    }
+
+    private void submit(final Task task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFailure.get() == null) {
+                    long cpuStartNanos = Debug.threadCpuTimeNanos();
+                    try {
+                        task.mWork.run();
+                    } catch (RuntimeException | Error e) {
+                        // Also errors, e.g. running out of memory, or run() would wait forever.
+                        mFailure.compareAndSet(null, e);
+                    } finally {
+                        mCpuNanos.addAndGet(Debug.threadCpuTimeNanos() - cpuStartNanos);
+                    }
+                }
+
+                for (Task dependent : task.mDependents) {
+                    if (dependent.mPendingDependencies.decrementAndGet() == 0) {
+                        submit(dependent);
+                    }
+                }
+                mRemaining.countDown();
+            }
+        });
+    }
+
+    /**
+     * Returns the time {@link #run()} took, in milliseconds.
+     */
+    long getWallTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mWallNanos);
+    }
+
+    /**
+     * Returns the CPU time used by all steps together, in milliseconds. With enough free cores
+     * this is more than the wall time.
+     */
+    long getCpuTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mCpuNanos.get());
+    }
+}
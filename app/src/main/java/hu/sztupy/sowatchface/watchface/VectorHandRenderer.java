@@ -0,0 +1,211 @@
+package hu.sztupy.sowatchface.watchface;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+/**
+ * Draws the hands and the UTC notch as filled paths instead of rotated images. The outlines
+ * follow the hand images in drawable-nodpi, given in their 320px coordinates with the pivot at
+ * 160,160, and are transformed to the screen once when the renderer is created. Drawing then
+ * only rotates the canvas and fills a few paths with paints that are kept between frames.
+ * <p>
+ * Nothing is kept in bitmaps, which makes this an option for watches short on memory, or slow
+ * at filtering bitmaps.
+ */
+class VectorHandRenderer implements HandRenderer {
+    private static final float DESIGN_SIZE = 320f;
+    private static final float DESIGN_PIVOT = 160f;
+
+    private static final int BODY_COLOR = Color.rgb(220, 214, 207);
+    private static final int SLOT_COLOR = Color.rgb(185, 186, 194);
+    private static final int OUTLINE_COLOR = Color.rgb(110, 107, 103);
+    private static final int NEEDLE_COLOR = Color.argb(180, 120, 116, 112);
+
+    private final float mPivotX;
+    private final float mPivotY;
+
+    private final Path mHourBody;
+    private final Path mHourSlot;
+    private final Path mMinuteBody;
+    private final Path mMinuteSlot;
+    private final Path mSecondNeedle;
+    private final Path mSecondBody;
+    private final Path mUtcNotch;
+
+    private final Paint mBodyPaint = new Paint();
+    private final Paint mSlotPaint = new Paint();
+    private final Paint mOutlinePaint = new Paint();
+    private final Paint mNeedlePaint = new Paint();
+    private final Paint mNotchPaint = new Paint();
+
+    private boolean mLowBit;
+    // Ambient mode on a screen with burn-in protection, only the outlines are drawn.
+    private boolean mOutlineOnly;
+
+    VectorHandRenderer(int screenWidth, int screenHeight) {
+        mPivotX = screenWidth / 2f;
+        mPivotY = screenHeight / 2f;
+
+        float scale = screenWidth / DESIGN_SIZE;
+        Matrix toScreen = new Matrix();
+        toScreen.setTranslate(-DESIGN_PIVOT, -DESIGN_PIVOT);
+        toScreen.postScale(scale, scale);
+        toScreen.postTranslate(mPivotX, mPivotY);
+
+        mHourBody = polygon(toScreen,
+                155, 86, 165, 86, 168, 146, 168, 158, 160, 178, 152, 158, 152, 146);
+        mHourSlot = polygon(toScreen,
+                156.5f, 90, 163.5f, 90, 164.5f, 140, 155.5f, 140);
+        mMinuteBody = polygon(toScreen,
+                157.5f, 24, 162.5f, 24, 168, 142, 168, 158, 160, 178, 152, 158, 152, 142);
+        mMinuteSlot = polygon(toScreen,
+                158.5f, 30, 161.5f, 30, 165, 136, 155, 136);
+
+        mSecondNeedle = new Path();
+        mSecondNeedle.moveTo(160, 65);
+        mSecondNeedle.lineTo(160, 152);
+        mSecondNeedle.transform(toScreen);
+        mSecondBody = new Path();
+        mSecondBody.addRoundRect(new RectF(156, 152, 164, 182), 4, 4, Path.Direction.CW);
+        mSecondBody.addCircle(DESIGN_PIVOT, DESIGN_PIVOT, 2, Path.Direction.CCW);
+        mSecondBody.transform(toScreen);
+
+        mUtcNotch = new Path();
+        mUtcNotch.moveTo(153, 8);
+        mUtcNotch.lineTo(153, 38);
+        mUtcNotch.moveTo(166, 8);
+        mUtcNotch.lineTo(166, 38);
+        mUtcNotch.transform(toScreen);
+
+        mBodyPaint.setStyle(Paint.Style.FILL);
+        mSlotPaint.setStyle(Paint.Style.FILL);
+        mOutlinePaint.setStyle(Paint.Style.STROKE);
+        mOutlinePaint.setStrokeWidth(scale);
+        mNeedlePaint.setStyle(Paint.Style.STROKE);
+        mNeedlePaint.setStrokeWidth(2 * scale);
+        mNotchPaint.setStyle(Paint.Style.STROKE);
+        mNotchPaint.setStrokeWidth(2 * scale);
+
+        setStyle(false, false, false, true, true);
+    }
+
+    private static Path polygon(Matrix toScreen, float... points) {
+        Path path = new Path();
+        path.moveTo(points[0], points[1]);
+        for (int i = 2; i < points.length; i += 2) {
+            path.lineTo(points[i], points[i + 1]);
+        }
+        path.close();
+        path.transform(toScreen);
+        return path;
+    }
+
+    /**
+     * Switches the colors between interactive mode, the gray ambient mode and low-bit ambient
+     * mode, which fills the hands with a single solid color without anti-aliasing. On screens
+     * with burn-in protection ambient mode draws only the outlines, so no pixel stays lit for
+     * long. Paths have nothing to filter.
+     */
+    @Override
+    public void setStyle(boolean ambient, boolean lowBit, boolean burnInProtection,
+                         boolean antiAlias, boolean filterBitmap) {
+        mLowBit = ambient && lowBit;
+        mOutlineOnly = ambient && burnInProtection;
+
+        if (mOutlineOnly) {
+            mOutlinePaint.setColor(SOWatchFace.GRAY);
+            mNeedlePaint.setColor(SOWatchFace.GRAY);
+            mNotchPaint.setColor(SOWatchFace.GRAY);
+        } else if (mLowBit) {
+            mBodyPaint.setColor(SOWatchFace.GRAY);
+            mNeedlePaint.setColor(SOWatchFace.GRAY);
+            mNotchPaint.setColor(SOWatchFace.GRAY);
+        } else if (ambient) {
+            // The same colors the gray copies of the hand images have.
+            mBodyPaint.setColor(toGray(BODY_COLOR));
+            mSlotPaint.setColor(toGray(SLOT_COLOR));
+            mOutlinePaint.setColor(toGray(OUTLINE_COLOR));
+            mNeedlePaint.setColor(toGray(NEEDLE_COLOR));
+            mNotchPaint.setColor(toGray(SOWatchFace.ORANGE));
+        } else {
+            mBodyPaint.setColor(BODY_COLOR);
+            mSlotPaint.setColor(SLOT_COLOR);
+            mOutlinePaint.setColor(OUTLINE_COLOR);
+            mNeedlePaint.setColor(NEEDLE_COLOR);
+            mNotchPaint.setColor(SOWatchFace.ORANGE);
+        }
+
+        boolean smooth = antiAlias && !mLowBit;
+        mBodyPaint.setAntiAlias(smooth);
+        mSlotPaint.setAntiAlias(smooth);
+        mOutlinePaint.setAntiAlias(smooth);
+        mNeedlePaint.setAntiAlias(smooth);
+        mNotchPaint.setAntiAlias(smooth);
+    }
+
+    /* Luminance with the weights of ColorMatrix.setSaturation(0). */
+    private static int toGray(int color) {
+        int gray = Math.round(0.213f * Color.red(color)
+                + 0.715f * Color.green(color)
+                + 0.072f * Color.blue(color));
+        return Color.argb(Color.alpha(color), gray, gray, gray);
+    }
+
+    @Override
+    public void drawUtcNotch(Canvas canvas, float degrees) {
+        canvas.save();
+        canvas.rotate(degrees, mPivotX, mPivotY);
+        canvas.drawPath(mUtcNotch, mNotchPaint);
+        canvas.restore();
+    }
+
+    @Override
+    public void drawHourHand(Canvas canvas, float degrees) {
+        drawHand(canvas, degrees, mHourBody, mHourSlot);
+    }
+
+    @Override
+    public void drawMinuteHand(Canvas canvas, float degrees) {
+        drawHand(canvas, degrees, mMinuteBody, mMinuteSlot);
+    }
+
+    private void drawHand(Canvas canvas, float degrees, Path body, Path slot) {
+        canvas.save();
+        canvas.rotate(degrees, mPivotX, mPivotY);
+        if (mOutlineOnly) {
+            canvas.drawPath(body, mOutlinePaint);
+        } else {
+            canvas.drawPath(body, mBodyPaint);
+            if (!mLowBit) {
+                canvas.drawPath(slot, mSlotPaint);
+                canvas.drawPath(body, mOutlinePaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    @Override
+    public void drawSecondHand(Canvas canvas, float degrees) {
+        canvas.save();
+        canvas.rotate(degrees, mPivotX, mPivotY);
+        canvas.drawPath(mSecondNeedle, mNeedlePaint);
+        if (mOutlineOnly) {
+            canvas.drawPath(mSecondBody, mOutlinePaint);
+        } else {
+            canvas.drawPath(mSecondBody, mBodyPaint);
+            if (!mLowBit) {
+                canvas.drawPath(mSecondBody, mOutlinePaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    @Override
+    public long getByteCount() {
+        return 0;
+    }
+}